@@ -9,12 +9,16 @@ package com.yahoo.viper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.Socket;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * This task is used to check the health of a particular host.
@@ -23,12 +27,27 @@ public class CheckTask implements Runnable {
 
     final static Logger logger = LoggerFactory.getLogger(CheckTask.class);
 
+    // Stands for the executing thread of a simulated check. It is never started, so interrupting it has no effect.
+    final private static Thread SIMULATED = new Thread("viper-simulated-check");
+
+    // Updaters rather than atomic objects, since there is a task per host
+    final private static AtomicReferenceFieldUpdater<CheckTask, Thread> EXECUTING_THREAD =
+            AtomicReferenceFieldUpdater.newUpdater(CheckTask.class, Thread.class, "executingThread");
+    final private static AtomicIntegerFieldUpdater<CheckTask> QUEUED =
+            AtomicIntegerFieldUpdater.newUpdater(CheckTask.class, "queued");
+
     final HostMonitor monitor;
-    private HostInfo hinfo;
+    final HostInfo hinfo;
 
     // If not null, holds the thread currently executing the task.
-    // The atomic reference is used to avoid having the same task checking the host.
-    private AtomicReference<Thread> executingThread = new AtomicReference<>();
+    // It is set atomically to avoid having the same task checking the host.
+    private volatile Thread executingThread;
+
+    // 1 while the task is waiting in the queue of the process-wide probe budget
+    private volatile int queued;
+
+    // If not null, closes the connection of the check in progress
+    private volatile Closeable connection;
 
     /**
      * Constructs a task for use by an executor. This task will check the specified host.
@@ -49,36 +68,90 @@ public class CheckTask implements Runnable {
      * @return true if the host is currnetly being checked.
      */
     public boolean isChecking() {
-        return executingThread.get() != null;
+        return executingThread != null;
+    }
+
+    /*
+     * Marks the task as waiting in the queue of the probe budget. Returns false if it already was.
+     */
+    boolean markQueued() {
+        return QUEUED.compareAndSet(this, 0, 1);
+    }
+
+    void clearQueued() {
+        queued = 0;
     }
 
     /**
-     * If the task is currently being executed, interrupt the thread executing it.
+     * If the task is currently being executed, interrupt the thread executing it and close the connection
+     * of the check, since an interrupt does not unblock a socket read.
      */
     public void cancel() {
         // Capture the executing thread value to avoid a race condition
-        Thread t = executingThread.get();
+        Thread t = executingThread;
         if (t != null) {
             t.interrupt();
         }
+        abort();
+    }
+
+    /*
+     * Closes the connection of the check in progress, if any, so that the check fails right away.
+     */
+    private void abort() {
+        Closeable c = connection;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (Exception e) {
+                logInfo(0, e);
+            }
+        }
+    }
+
+    /*
+     * Called by the timing wheel when the check has not completed by its deadline. Interrupts the checker
+     * thread as well as closing the connection, in case the check is blocked elsewhere, e.g. resolving the host.
+     */
+    private void expire() {
+        HostInfo.logger.infoFor(hinfo, "[{}] {}: check did not complete within {} ms. Aborting it.", monitor.name,
+                hinfo.url == null ? hinfo.socketAddress : hinfo.url, hinfo.checkTimeoutMs());
+        cancel();
     }
 
     /**
      * The host-checking logic. It is possible for this method to hang because of problems with the host.
      */
     public void run() {
-        // Capture the thread so that it can be interrupted by cancel()
-        if (!executingThread.compareAndSet(null, Thread.currentThread())) {
-            // Don't check if already checking
-            return;
-        }
+        run(null);
+    }
+
+    /*
+     * Runs the check. If not null, the probe budget that dispatched this run is released when the run completes.
+     * The budget is passed to each run rather than stored in the task, since a task can be queued and dispatched
+     * again before an earlier dispatch has started.
+     */
+    void run(ProbeBudget b) {
         try {
-            doRun();
-        } catch (Throwable e) {
-            hinfo.logger.error(e.getMessage(), e);
+            // Capture the thread so that it can be interrupted by cancel()
+            if (!EXECUTING_THREAD.compareAndSet(this, null, Thread.currentThread())) {
+                // Don't check if already checking
+                return;
+            }
+            try {
+                doRun();
+                monitor.publish(hinfo);
+            } catch (Throwable e) {
+                HostInfo.logger.error(e.getMessage(), e);
+            } finally {
+                // Indicate that the check is finished
+                executingThread = null;
+                monitor.scheduleNextCheck(hinfo);
+            }
         } finally {
-            // Indicate that the check is finished
-            executingThread.set(null);
+            if (b != null) {
+                b.release();
+            }
         }
     }
 
@@ -86,55 +159,75 @@ public class CheckTask implements Runnable {
         InputStream in = null;
         OutputStream out = null;
         HttpURLConnection http = null;
+        SSLSocket ssl = null;
+        int timeoutMs = hinfo.checkTimeoutMs();
+
+        // Arm the deadline of the check, which closes its connection if it is still in progress
+        Scheduler.Cancellable deadline = monitor.scheduler.schedule(this::expire, timeoutMs);
         try {
             // Start checking
-            hinfo.lastCheck = System.currentTimeMillis();
+            hinfo.setLastCheck(monitor.scheduler.currentTimeMillis());
 
-            if (hinfo.url == null) {
+            Probe probe = hinfo.probe;
+            if (probe != null) {
+                // The probe registers its channel so that the deadline can close it
+                probe.check(hinfo, hinfo.resolve(), timeoutMs, c -> connection = c);
+            } else if (hinfo.url == null) {
                 // Check host and port
                 Socket socket = new Socket();
-                socket.connect(hinfo.socketAddress, monitor.checkPeriodMs);
-                in = socket.getInputStream();
-                out = socket.getOutputStream();
-                in.read();
+                connection = socket;
+                socket.connect(hinfo.resolve(), timeoutMs);
+                if (hinfo.tls != null) {
+                    // The check succeeds once the handshake completes
+                    ssl = hinfo.tls.handshake(socket, hinfo, timeoutMs);
+                } else {
+                    in = socket.getInputStream();
+                    out = socket.getOutputStream();
+                    in.read();
+                }
             } else {
                 // Check URL
                 http = (HttpURLConnection) hinfo.url.openConnection();
-                http.setConnectTimeout(monitor.checkPeriodMs);
+                http.setConnectTimeout(timeoutMs);
+                connection = http::disconnect;
+                if (hinfo.tls != null && http instanceof HttpsURLConnection) {
+                    hinfo.tls.configure((HttpsURLConnection) http);
+                }
                 int status = http.getResponseCode();
                 if (status != 200) {
                     throw new IOException(String.format("returning status %d", status));
                 }
+                if (hinfo.tls != null && http instanceof HttpsURLConnection) {
+                    hinfo.tls.connected((HttpsURLConnection) http, hinfo);
+                }
+                reportLoad(http.getHeaderField(monitor.loadHeader));
             }
 
-            // Success
-            hinfo.lastLive = System.currentTimeMillis();
-            if (!hinfo.live) {
-                hinfo.logger.info(String.format("[%s] %s is now live", monitor.name,
-                        hinfo.url == null ? hinfo.socketAddress : hinfo.url));
-                hinfo.failedChecks = 0;
-                hinfo.live = true;
-            }
+            succeeded();
         } catch (Throwable e) {
-            // All exceptions encountered by the checker should just be info.
-            // Warnings and errors are generated by the HostMonitor background thread.
-            if (++hinfo.failedChecks > monitor.retries) {
-                hinfo.live = false;
-            }
-            logInfo(true, e);
+            failed(e);
         } finally {
+            deadline.cancel();
+            connection = null;
             if (in != null) {
                 try {
                     in.close();
                 } catch (Exception e) {
-                    logInfo(false, e);
+                    logInfo(0, e);
                 }
             }
             if (out != null) {
                 try {
                     out.close();
                 } catch (Exception e) {
-                    logInfo(false, e);
+                    logInfo(0, e);
+                }
+            }
+            if (ssl != null) {
+                try {
+                    ssl.close();
+                } catch (Exception e) {
+                    logInfo(0, e);
                 }
             }
             if (http != null) {
@@ -143,16 +236,114 @@ public class CheckTask implements Runnable {
         }
     }
 
-    private void logInfo(boolean showRetries, Throwable e) {
+    /*
+     * Records the load reported by the host, if any.
+     */
+    private void reportLoad(String value) {
+        if (value != null) {
+            try {
+                double load = Double.parseDouble(value.trim());
+                if (load >= 0 && !Double.isInfinite(load)) {
+                    hinfo.reportLoad(load, monitor.loadSmoothing);
+                }
+            } catch (NumberFormatException e) {
+                HostInfo.logger.infoFor(hinfo, "[{}] {}: invalid {} header: {}", monitor.name, hinfo.url,
+                        monitor.loadHeader, value);
+            }
+        }
+    }
+
+    /*
+     * Records a successful check. The check started at lastCheck.
+     */
+    private void succeeded() {
+        hinfo.setLastLive(monitor.scheduler.currentTimeMillis());
+        hinfo.setLatency(hinfo.lastLive() - hinfo.lastCheck());
+        hinfo.setProvisional(false);
+        int passed = hinfo.recordOutcome(true, monitor.hysteresisWindow);
+        if (!hinfo.live() && passed >= monitor.riseChecks) {
+            HostInfo.logger.infoFor(hinfo, "[{}] {} is now live", monitor.name,
+                    hinfo.url == null ? hinfo.socketAddress : hinfo.url);
+            monitor.setLive(hinfo, true);
+        }
+        record(hinfo.latency());
+    }
+
+    /*
+     * Records a failed check.
+     */
+    private void failed(Throwable e) {
+        // All exceptions encountered by the checker should just be info.
+        // Warnings and errors are generated by the HostMonitor background thread.
+        // A provisional state restored from a snapshot gets no retries
+        int n = hinfo.recordOutcome(false, monitor.hysteresisWindow);
+        if (n >= monitor.fallChecks || hinfo.isProvisional()) {
+            monitor.setLive(hinfo, false);
+        }
+        hinfo.setProvisional(false);
+        record(-1);
+        logInfo(hinfo.live() ? monitor.fallChecks - n : 0, e);
+    }
+
+    /*
+     * Adds the outcome of the check to the host's history and the monitor's journal.
+     */
+    private void record(long latency) {
+        HostHistory h = hinfo.history;
+        if (h != null) {
+            h.record(hinfo.lastCheck(), latency, hinfo.live());
+        }
+        EventJournal j = monitor.journal;
+        if (j != null) {
+            j.check(hinfo, latency);
+        }
+    }
+
+    /**
+     * Starts a simulated check. Used by {@link Simulation} in place of {@link #run()}.
+     *
+     * @return false if the host is already being checked.
+     */
+    boolean startSimulated() {
+        if (!EXECUTING_THREAD.compareAndSet(this, null, SIMULATED)) {
+            return false;
+        }
+        hinfo.setLastCheck(monitor.scheduler.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Completes a simulated check started with {@link #startSimulated()}.
+     *
+     * @param failure The reason the check failed, or null if it succeeded.
+     */
+    void endSimulated(Throwable failure) {
+        if (failure == null) {
+            succeeded();
+        } else {
+            failed(failure);
+        }
+        executingThread = null;
+        monitor.scheduleNextCheck(hinfo);
+    }
+
+    /*
+     * Logs a failed check. retries is the number of failed checks it still takes to mark the host down.
+     */
+    private void logInfo(int retries, Throwable e) {
         if (monitor.showFullStackTraces) {
-            hinfo.logger.error("Failed check for " + hinfo, e);
+            HostInfo.logger.errorFor(hinfo, "Failed check for {}", hinfo, e);
         } else {
-            int r = Math.max(0, monitor.retries + 1 - hinfo.failedChecks);
-            String s = showRetries && r > 0 ? "(" + r + " more retries)" : "";
-            hinfo.logger.info(String.format("[%s] %s: %s[%s] %s",
-                    monitor.name, hinfo.url == null ? hinfo.socketAddress : hinfo.url,
-                    e.getClass().getName(),
-                    e.getMessage(), s));
+            // The message is only formatted if it is not suppressed
+            if (retries > 0) {
+                HostInfo.logger.infoFor(hinfo, "[{}] {}: {}[{}] ({} more retries)",
+                        monitor.name, hinfo.url == null ? hinfo.socketAddress : hinfo.url,
+                        e.getClass().getName(), e.getMessage(), retries);
+            } else {
+                HostInfo.logger.infoFor(hinfo, "[{}] {}: {}[{}]",
+                        monitor.name, hinfo.url == null ? hinfo.socketAddress : hinfo.url,
+                        e.getClass().getName(), e.getMessage());
+            }
         }
     }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+/**
+ * An adaptive limit on the number of requests in flight to a host, adjusted by additive increase and
+ * multiplicative decrease (AIMD) on the observed request latency. The limit grows by one per limit's worth of
+ * fast requests while the host is busy, and is cut by a tenth when a request fails or takes much longer than
+ * the host's baseline latency. The baseline is a slow moving average of the latencies, so a host that becomes
+ * permanently slower is eventually given its capacity back.
+ * <p>
+ * The decrease is applied at most once per baseline latency, so that the requests that were already in flight
+ * when the host slowed down do not cut the limit all the way to the minimum.
+ */
+class ConcurrencyLimit {
+    // The factor applied to the limit when the host is slow
+    final private static double BACKOFF = 0.9;
+
+    // A request is slow if it takes longer than this multiple of the baseline latency
+    final private static double TOLERANCE = 2.0;
+
+    // The weight of each sample in the baseline latency
+    final private static double BASELINE_SMOOTHING = 0.05;
+
+    final private int minLimit;
+    final private int maxLimit;
+
+    // The limit with its fractional increments, and the limit as enforced
+    private double estimate;
+    private volatile int limit;
+
+    // The baseline latency in nanoseconds, or 0 before the first sample
+    private double baseline;
+
+    // The time of the last decrease, in System.nanoTime() units
+    private long lastDecrease;
+
+    /**
+     * Creates a limit.
+     *
+     * @param initial  The initial limit.
+     * @param minLimit The lowest limit, at least 1.
+     * @param maxLimit The highest limit.
+     */
+    ConcurrencyLimit(int initial, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.estimate = Math.max(minLimit, Math.min(maxLimit, initial));
+        this.limit = (int) estimate;
+        this.lastDecrease = System.nanoTime();
+    }
+
+    /**
+     * Returns the current limit.
+     *
+     * @return the maximum number of requests in flight.
+     */
+    int limit() {
+        return limit;
+    }
+
+    /**
+     * Adjusts the limit with the outcome of a request.
+     *
+     * @param latencyNanos The duration of the request.
+     * @param failed       True if the request failed.
+     * @param inFlight     The number of requests in flight when the request completed, including itself.
+     */
+    synchronized void sample(long latencyNanos, boolean failed, int inFlight) {
+        long now = System.nanoTime();
+        if (baseline == 0) {
+            baseline = latencyNanos;
+        }
+        if (failed || latencyNanos > TOLERANCE * baseline) {
+            if (now - lastDecrease > baseline) {
+                estimate = Math.max(minLimit, estimate * BACKOFF);
+                lastDecrease = now;
+            }
+        } else if (2 * inFlight >= limit) {
+            // Only grow the limit while it is being used
+            estimate = Math.min(maxLimit, estimate + 1 / estimate);
+        }
+        if (!failed) {
+            baseline += BASELINE_SMOOTHING * (latencyNanos - baseline);
+        }
+        limit = (int) estimate;
+    }
+}
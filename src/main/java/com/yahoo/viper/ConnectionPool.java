@@ -0,0 +1,434 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A per-host pool of connections that follows the state of a host monitor. When a host becomes live,
+ * its pool is filled in the background with a minimum number of idle connections, so that request threads
+ * do not pay for the connect or the TLS handshake. When a host goes down, its idle connections are closed
+ * right away in the background and connections released back to it afterwards are closed instead of being pooled.
+ * <p>
+ * Typical usage:
+ * <pre>
+ * ConnectionPool&lt;SocketChannel&gt; pool = new ConnectionPool&lt;&gt;(hmonitor, ConnectionPool.socketChannels(1000), 2, 8);
+ * HostInfo host = hmonitor.liveHost();
+ * SocketChannel ch = pool.acquire(host);
+ * try {
+ *     ...
+ *     pool.release(host, ch);
+ * } catch (IOException e) {
+ *     pool.invalidate(host, ch);
+ * }
+ * </pre>
+ *
+ * @param <C> The type of connection.
+ */
+public class ConnectionPool<C> implements Closeable {
+    final private static ExceptionLogger excLogger = new ExceptionLogger(ConnectionPool.class);
+
+    // The buffer of the read that checks whether an idle channel is still usable; its contents are discarded
+    final private static ThreadLocal<ByteBuffer> PROBE_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(1));
+
+    /**
+     * Creates, validates and closes the connections of a pool.
+     *
+     * @param <C> The type of connection.
+     */
+    public interface Connector<C> {
+        /**
+         * Opens a connection to the host. Called from the pool's warming threads and, if the host has no
+         * idle connections, from the thread acquiring a connection.
+         *
+         * @param hinfo Non-null host to connect to.
+         * @return non-null connection.
+         * @throws IOException if the connection could not be opened.
+         */
+        C connect(HostInfo hinfo) throws IOException;
+
+        /**
+         * Returns true if an idle connection can still be used.
+         *
+         * @param conn Non-null connection.
+         * @return true if the connection is usable.
+         */
+        boolean isOpen(C conn);
+
+        /**
+         * Closes the connection, ignoring any error.
+         *
+         * @param conn Non-null connection.
+         */
+        void close(C conn);
+    }
+
+    final private HostMonitor monitor;
+    final private Connector<C> connector;
+    final private int minIdle;
+    final private int maxIdle;
+    final private Pool<C>[] pools;
+    final private ExecutorService warmer;
+    final private Consumer<HostMonitorEvent> listener = event -> hostChanged(event.hostInfo, event.live);
+    private volatile boolean closed;
+
+    /*
+     * The idle connections of one host.
+     */
+    private static class Pool<C> {
+        final ConcurrentLinkedQueue<C> idle = new ConcurrentLinkedQueue<>();
+        final AtomicInteger idleCount = new AtomicInteger();
+
+        // True while the host is live; connections are only pooled while open
+        volatile boolean open;
+
+        // True while a warming task for this host is scheduled
+        final AtomicBoolean warming = new AtomicBoolean();
+    }
+
+    /**
+     * Creates a pool for the hosts of the monitor and starts warming the hosts that are already live.
+     *
+     * @param monitor   Non-null monitor whose host states drive the pool.
+     * @param connector Non-null connector used to create connections.
+     * @param minIdle   The number of idle connections kept ready for each live host.
+     * @param maxIdle   The maximum number of idle connections kept for each host.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ConnectionPool(HostMonitor monitor, Connector<C> connector, int minIdle, int maxIdle) {
+        this.monitor = monitor;
+        this.connector = connector;
+        this.minIdle = minIdle;
+        this.maxIdle = Math.max(minIdle, maxIdle);
+
+        List<HostInfo> hinfos = monitor.hostInfos();
+        this.pools = new Pool[hinfos.size()];
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new Pool<>();
+        }
+        this.warmer = Executors.newFixedThreadPool(Math.max(1, Math.min(4, hinfos.size())));
+
+        monitor.registerForHostEvents(listener);
+        for (HostInfo hi : hinfos) {
+            if (hi.isLive()) {
+                hostChanged(hi, true);
+            }
+        }
+    }
+
+    /**
+     * Returns a connection to the host. An idle connection is returned if one is available; otherwise
+     * a new connection is opened on the calling thread. The connection counts as a request in flight to
+     * the host until it is released or invalidated.
+     *
+     * @param hinfo Non-null host, typically returned by {@link HostMonitor#liveHost()}.
+     * @return a connection, or null if the host is not live.
+     * @throws IOException if a new connection could not be opened.
+     */
+    public C acquire(HostInfo hinfo) throws IOException {
+        Pool<C> pool = pools[hinfo.index];
+        if (!pool.open) {
+            return null;
+        }
+        C conn;
+        while ((conn = pool.idle.poll()) != null) {
+            pool.idleCount.decrementAndGet();
+            if (connector.isOpen(conn)) {
+                break;
+            }
+            connector.close(conn);
+        }
+        warm(hinfo, pool);
+        if (conn == null) {
+            conn = connector.connect(hinfo);
+        }
+        hinfo.beginRequest();
+        return conn;
+    }
+
+    /**
+     * Returns a healthy connection to the pool. The connection is closed instead if the host is no longer
+     * live or the pool is full.
+     *
+     * @param hinfo Non-null host the connection was acquired for.
+     * @param conn  Non-null connection.
+     */
+    public void release(HostInfo hinfo, C conn) {
+        hinfo.endRequest();
+        offer(hinfo, conn);
+    }
+
+    /*
+     * Adds a connection to the idle connections of the host, or closes it.
+     */
+    private void offer(HostInfo hinfo, C conn) {
+        Pool<C> pool = pools[hinfo.index];
+        if (pool.open) {
+            if (pool.idleCount.incrementAndGet() <= maxIdle) {
+                pool.idle.add(conn);
+
+                // The host may have gone down concurrently
+                if (!pool.open) {
+                    drain(pool);
+                }
+                return;
+            }
+            pool.idleCount.decrementAndGet();
+        }
+        connector.close(conn);
+    }
+
+    /**
+     * Closes a connection that failed or is in an unknown state.
+     *
+     * @param hinfo Non-null host the connection was acquired for.
+     * @param conn  Non-null connection.
+     */
+    public void invalidate(HostInfo hinfo, C conn) {
+        hinfo.endRequest();
+        connector.close(conn);
+        warm(hinfo, pools[hinfo.index]);
+    }
+
+    /**
+     * Returns the number of idle connections of the host.
+     *
+     * @param hinfo Non-null host.
+     * @return the number of idle connections.
+     */
+    public int idleCount(HostInfo hinfo) {
+        return pools[hinfo.index].idleCount.get();
+    }
+
+    /**
+     * Closes all idle connections, stops warming and stops following the monitor. Connections released
+     * afterwards are closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        monitor.unregisterForHostEvents(listener);
+        warmer.shutdownNow();
+        for (Pool<C> pool : pools) {
+            pool.open = false;
+            drain(pool);
+        }
+    }
+
+    /*
+     * Called with the monitor's lock held, so the idle connections of a host that went down are closed on a
+     * warming thread rather than here.
+     */
+    private void hostChanged(HostInfo hinfo, boolean live) {
+        Pool<C> pool = pools[hinfo.index];
+        pool.open = live && !closed;
+        if (pool.open) {
+            warm(hinfo, pool);
+        } else {
+            try {
+                warmer.execute(() -> drain(pool));
+            } catch (RejectedExecutionException e) {
+                // The pool is closed, which drains it
+            }
+        }
+    }
+
+    private void drain(Pool<C> pool) {
+        C conn;
+        while ((conn = pool.idle.poll()) != null) {
+            pool.idleCount.decrementAndGet();
+            connector.close(conn);
+        }
+    }
+
+    /*
+     * Schedules the host's pool to be filled up to the minimum number of idle connections.
+     */
+    private void warm(HostInfo hinfo, Pool<C> pool) {
+        if (!pool.open || pool.idleCount.get() >= minIdle || !pool.warming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            warmer.submit(() -> {
+                try {
+                    while (pool.open && pool.idleCount.get() < minIdle) {
+                        offer(hinfo, connector.connect(hinfo));
+                    }
+                } catch (Throwable e) {
+                    excLogger.infoFor(hinfo, "[{}] {}: failed to open a pooled connection: {}", monitor.name,
+                            hinfo.url == null ? hinfo.socketAddress : hinfo.url, e.getMessage());
+                } finally {
+                    pool.warming.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The pool is closed
+            pool.warming.set(false);
+        }
+    }
+
+    /**
+     * Returns a connector of blocking socket channels to the host's port, or to the host and port
+     * of its URL.
+     *
+     * @param timeoutMs The connect timeout.
+     * @return non-null connector.
+     */
+    public static Connector<SocketChannel> socketChannels(int timeoutMs) {
+        return new Connector<SocketChannel>() {
+            @Override
+            public SocketChannel connect(HostInfo hinfo) throws IOException {
+                SocketChannel ch = SocketChannel.open();
+                try {
+                    ch.socket().setTcpNoDelay(true);
+                    ch.socket().connect(address(hinfo), timeoutMs);
+                    return ch;
+                } catch (IOException e) {
+                    ch.close();
+                    throw e;
+                }
+            }
+
+            @Override
+            public boolean isOpen(SocketChannel ch) {
+                return ch.isConnected() && isIdle(ch);
+            }
+
+            @Override
+            public void close(SocketChannel ch) {
+                try {
+                    ch.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a connector of keep-alive sockets for sending HTTP requests to the host of a URL host.
+     * For HTTPS, the TLS handshake is completed when the connection is opened, using the host's
+     * {@link TlsCheck} if it has one. A plain socket closed by the server is detected without waiting;
+     * detecting it on a TLS socket takes a read of up to one millisecond.
+     *
+     * @param timeoutMs The connect and handshake timeout.
+     * @return non-null connector.
+     */
+    public static Connector<Socket> keepAliveSockets(int timeoutMs) {
+        return new Connector<Socket>() {
+            @Override
+            public Socket connect(HostInfo hinfo) throws IOException {
+                // Backed by a channel so that a closed plain socket can be detected with a read that doesn't block
+                Socket socket = SocketChannel.open().socket();
+                try {
+                    socket.setKeepAlive(true);
+                    socket.setTcpNoDelay(true);
+                    socket.connect(address(hinfo), timeoutMs);
+                    if (hinfo.url != null && "https".equalsIgnoreCase(hinfo.url.getProtocol())) {
+                        SSLSocket ssl;
+                        if (hinfo.tls != null) {
+                            ssl = hinfo.tls.handshake(socket, hinfo, timeoutMs);
+                        } else {
+                            SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+                            ssl = (SSLSocket) factory.createSocket(socket, hinfo.name, socket.getPort(), true);
+                            ssl.setSoTimeout(timeoutMs);
+                            ssl.startHandshake();
+                        }
+                        ssl.setSoTimeout(0);
+                        return ssl;
+                    }
+                    return socket;
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+            }
+
+            @Override
+            public boolean isOpen(Socket socket) {
+                if (!socket.isConnected() || socket.isClosed() || socket.isInputShutdown()) {
+                    return false;
+                }
+                SocketChannel ch = socket.getChannel();
+                if (ch != null) {
+                    return isIdle(ch);
+                }
+
+                // A TLS socket, whose records can only be read through the socket. The read also consumes
+                // messages the server may send after the handshake, such as session tickets.
+                try {
+                    socket.setSoTimeout(1);
+                    try {
+                        socket.getInputStream().read();
+                        return false;
+                    } finally {
+                        socket.setSoTimeout(0);
+                    }
+                } catch (SocketTimeoutException e) {
+                    return true;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public void close(Socket socket) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        };
+    }
+
+    /*
+     * Returns true if a connected channel has nothing to read. A read that doesn't block returns -1 if the peer
+     * closed the connection, and data if the peer sent something unexpected; neither is usable.
+     */
+    private static boolean isIdle(SocketChannel ch) {
+        ByteBuffer buf = PROBE_BUFFER.get();
+        buf.clear();
+        try {
+            ch.configureBlocking(false);
+            try {
+                return ch.read(buf) == 0;
+            } finally {
+                ch.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /*
+     * Returns the address to connect to for the host.
+     */
+    static InetSocketAddress address(HostInfo hinfo) throws IOException {
+        if (hinfo.url == null) {
+            return hinfo.resolve();
+        }
+        int port = hinfo.url.getPort() < 0 ? hinfo.url.getDefaultPort() : hinfo.url.getPort();
+        return new InetSocketAddress(hinfo.url.getHost(), port);
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * An append-only journal of every check and every liveness transition of a monitor's hosts, kept for
+ * post-mortems. Unlike the log, nothing is condensed. Enable it with
+ * {@link HostMonitor#setJournal(File, int, int)} and read it with {@link #read(File, long, long, Consumer)}
+ * or the journal tool.
+ * <p>
+ * Recording an event copies a few primitives into a bounded lock-free queue; a writer thread appends
+ * them to memory-mapped segment files. If the writer falls behind and the queue is full, events are
+ * dropped rather than delaying the checks, and counted. A segment is named
+ * {@code <monitor>-<sequence>.journal} and starts with a header that lists the hosts:
+ * <pre>
+ * header: int magic, int layout, long created, utf monitor, int numHosts, utf host*
+ * record: long time, int host, int latency, int failedChecks, byte live, byte unused[2], byte type
+ * </pre>
+ * A utf is a short length followed by UTF-8 bytes. The rest of the segment is zero-filled; a record with
+ * type 0 marks the end. When a segment is full, the next one is created and the oldest segments beyond
+ * the maximum are deleted.
+ */
+public class EventJournal {
+    final private static ExceptionLogger excLogger = new ExceptionLogger(EventJournal.class);
+
+    final static int MAGIC = 0x56494a4c;
+    final static int LAYOUT = 1;
+    final static int RECORD_SIZE = 24;
+    final static String SUFFIX = ".journal";
+
+    /**
+     * The type of a record of a completed check.
+     */
+    final public static int CHECK = 1;
+
+    /**
+     * The type of a record of a liveness transition.
+     */
+    final public static int TRANSITION = 2;
+
+    // The capacity of the queue; a power of 2
+    final static int QUEUE_SIZE = 8192;
+
+    // The writer sleeps this long when the queue is empty
+    final private static long IDLE_NANOS = 10000000L;
+
+    /**
+     * A decoded journal record.
+     */
+    public static class Record {
+        /**
+         * The name of the monitor that wrote the record.
+         */
+        public String monitor;
+
+        /**
+         * The key of the host, e.g. host:port or the URL.
+         */
+        public String host;
+
+        /**
+         * Either {@link #CHECK} or {@link #TRANSITION}.
+         */
+        public int type;
+
+        /**
+         * For a check, the time it started. For a transition, the time it happened.
+         */
+        public long time;
+
+        /**
+         * True if the host is live after the check or transition.
+         */
+        public boolean live;
+
+        /**
+         * For a check, the latency in milliseconds, or -1 if the check failed.
+         */
+        public long latency;
+
+        /**
+         * The number of consecutive failed checks of the host.
+         */
+        public int failedChecks;
+
+        @Override
+        public String toString() {
+            if (type == TRANSITION) {
+                return String.format("%d %s %s %s", time, monitor, host, live ? "up" : "down");
+            }
+            return String.format("%d %s %s check %s", time, monitor, host,
+                    latency < 0 ? "failed (" + failedChecks + ")" : "ok " + latency + "ms");
+        }
+    }
+
+    final private File dir;
+    final private String name;
+    final private String prefix;
+    final private List<HostInfo> hinfos;
+    final private int segmentSize;
+    final private int maxSegments;
+
+    // The queue. A slot is free for the producer claiming position p when its sequence is p, and holds
+    // an event for the consumer at position p when its sequence is p + 1.
+    final private AtomicLongArray sequences = new AtomicLongArray(QUEUE_SIZE);
+    final private long[] times = new long[QUEUE_SIZE];
+    final private int[] hosts = new int[QUEUE_SIZE];
+    final private int[] latencies = new int[QUEUE_SIZE];
+    final private int[] failures = new int[QUEUE_SIZE];
+    final private byte[] types = new byte[QUEUE_SIZE];
+    final private boolean[] lives = new boolean[QUEUE_SIZE];
+    final private AtomicLong tail = new AtomicLong();
+    private long head;
+
+    // The number of events dropped because the queue was full
+    final AtomicLong dropped = new AtomicLong();
+
+    // Only used by the writer thread
+    private long segmentSeq;
+    private RandomAccessFile raf;
+    private MappedByteBuffer buf;
+
+    final private Thread writer;
+    private volatile boolean run = true;
+
+    /**
+     * Creates the journal and its first segment, and starts the writer thread.
+     *
+     * @param dir         Non-null directory of the segments. It is created if necessary.
+     * @param name        Non-null name of the monitor.
+     * @param hinfos      Non-null list of the monitor's hosts.
+     * @param segmentSize The size of a segment in bytes.
+     * @param maxSegments The maximum number of segments kept.
+     * @throws IOException if the first segment could not be created.
+     */
+    EventJournal(File dir, String name, List<HostInfo> hinfos, int segmentSize, int maxSegments)
+            throws IOException {
+        this.dir = dir;
+        this.name = name;
+        this.prefix = name.replaceAll("[^A-Za-z0-9._]", "_") + "-";
+        this.hinfos = hinfos;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            sequences.set(i, i);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+
+        // Continue after the segments of a previous run
+        for (File f : ownSegments()) {
+            String n = f.getName();
+            segmentSeq = Math.max(segmentSeq,
+                    Long.parseLong(n.substring(prefix.length(), n.length() - SUFFIX.length())));
+        }
+        rotate();
+
+        writer = new Thread(this::write, "viper-journal-" + name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records a completed check. Called by the host's checker.
+     *
+     * @param hi      Non-null host.
+     * @param latency The latency of the check, or -1 if it failed.
+     */
+    void check(HostInfo hi, long latency) {
+        offer(CHECK, hi.lastCheck(), hi, latency);
+    }
+
+    /**
+     * Records a liveness transition.
+     *
+     * @param hi   Non-null host.
+     * @param time The time of the transition.
+     */
+    void transition(HostInfo hi, long time) {
+        offer(TRANSITION, time, hi, -1);
+    }
+
+    private void offer(int type, long time, HostInfo hi, long latency) {
+        long pos;
+        int slot;
+        while (true) {
+            pos = tail.get();
+            slot = (int) (pos & (QUEUE_SIZE - 1));
+            long seq = sequences.get(slot);
+            if (seq < pos) {
+                // Full
+                dropped.incrementAndGet();
+                return;
+            }
+            if (seq == pos && tail.compareAndSet(pos, pos + 1)) {
+                break;
+            }
+        }
+        times[slot] = time;
+        hosts[slot] = hi.index;
+        latencies[slot] = (int) Math.max(-1, Math.min(latency, Integer.MAX_VALUE));
+        failures[slot] = hi.failedChecks();
+        lives[slot] = hi.live();
+        types[slot] = (byte) type;
+        sequences.set(slot, pos + 1);
+    }
+
+    /*
+     * The writer thread. Drains the queue into the current segment until closed.
+     */
+    private void write() {
+        while (true) {
+            boolean running = run;
+            int n = 0;
+            int slot;
+            while (sequences.get(slot = (int) (head & (QUEUE_SIZE - 1))) == head + 1) {
+                try {
+                    if (buf == null || buf.remaining() < RECORD_SIZE) {
+                        rotate();
+                    }
+                    buf.putLong(times[slot]).putInt(hosts[slot]).putInt(latencies[slot]).putInt(failures[slot])
+                            .put((byte) (lives[slot] ? 1 : 0)).put((byte) 0).put((byte) 0).put(types[slot]);
+                } catch (IOException e) {
+                    // The event is lost; the segment is created again for the next event
+                    excLogger.warnFor(null, "[{}] Failed to create a journal segment in {}: {}", name, dir,
+                            e.getMessage());
+                    dropped.incrementAndGet();
+                } catch (RuntimeException e) {
+                    excLogger.error(e.getMessage(), e);
+                    dropped.incrementAndGet();
+                }
+                sequences.set(slot, head + QUEUE_SIZE);
+                head++;
+                n++;
+            }
+            if (!running) {
+                return;
+            }
+            if (n == 0) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    /*
+     * Closes the current segment, if any, and starts the next one. Deletes the oldest segments beyond
+     * the maximum.
+     */
+    private void rotate() throws IOException {
+        closeSegment();
+
+        File f = new File(dir, String.format("%s%010d%s", prefix, ++segmentSeq, SUFFIX));
+        ByteBuffer header = header();
+        raf = new RandomAccessFile(f, "rw");
+        buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(segmentSize, header.capacity() + 16 * RECORD_SIZE));
+        buf.put(header);
+
+        List<File> mine = ownSegments();
+        for (int i = 0; i < mine.size() - maxSegments; i++) {
+            if (!mine.get(i).delete()) {
+                excLogger.warnFor(null, "[{}] Failed to delete journal segment {}", name, mine.get(i));
+            }
+        }
+    }
+
+    private ByteBuffer header() {
+        List<byte[]> keys = new ArrayList<>();
+        int size = 20 + 2 + utf(name).length;
+        for (HostInfo hi : hinfos) {
+            byte[] k = utf(hi.key());
+            keys.add(k);
+            size += 2 + k.length;
+        }
+        ByteBuffer b = ByteBuffer.allocate(size);
+        b.putInt(MAGIC).putInt(LAYOUT).putLong(System.currentTimeMillis());
+        byte[] n = utf(name);
+        b.putShort((short) n.length).put(n).putInt(keys.size());
+        for (byte[] k : keys) {
+            b.putShort((short) k.length).put(k);
+        }
+        b.flip();
+        return b;
+    }
+
+    private static byte[] utf(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        return b.length > Short.MAX_VALUE ? Arrays.copyOf(b, Short.MAX_VALUE) : b;
+    }
+
+    private void closeSegment() throws IOException {
+        if (buf != null) {
+            buf.force();
+            buf = null;
+        }
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+    }
+
+    /**
+     * Writes the queued events and closes the current segment.
+     *
+     * @throws InterruptedException if interrupted while waiting for the writer.
+     */
+    void close() throws InterruptedException {
+        run = false;
+        LockSupport.unpark(writer);
+        writer.join();
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            excLogger.warnFor(null, "[{}] Failed to close the journal: {}", name, e.getMessage());
+        }
+    }
+
+    /*
+     * Returns the segments of this monitor, in order. The segments of a monitor whose name starts with
+     * this monitor's name are excluded.
+     */
+    private List<File> ownSegments() {
+        List<File> mine = new ArrayList<>();
+        for (File f : segments(dir)) {
+            String n = f.getName();
+            if (n.startsWith(prefix) && n.substring(prefix.length()).matches("\\d{10}\\" + SUFFIX)) {
+                mine.add(f);
+            }
+        }
+        return mine;
+    }
+
+    /*
+     * Returns the segment files in the directory, in order.
+     */
+    private static List<File> segments(File dir) {
+        File[] files = dir.listFiles((d, n) -> n.endsWith(SUFFIX));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Reads the records of all the journals in a directory that fall within a time range. Records are
+     * passed in the order they were written by each monitor. Segments that are still being written can be read.
+     *
+     * @param dir      Non-null directory of the segments.
+     * @param fromTime The earliest time of the records, inclusive.
+     * @param toTime   The latest time of the records, exclusive.
+     * @param consumer Non-null consumer of the records. The record object is reused for each call.
+     * @throws IOException if a segment could not be read or is not a journal segment.
+     */
+    public static void read(File dir, long fromTime, long toTime, Consumer<Record> consumer) throws IOException {
+        Record r = new Record();
+        for (File f : segments(dir)) {
+            try (RandomAccessFile in = new RandomAccessFile(f, "r")) {
+                ByteBuffer b = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+                if (b.remaining() < 20 || b.getInt() != MAGIC || b.getInt() != LAYOUT) {
+                    throw new IOException("Not a journal segment: " + f);
+                }
+                b.getLong();
+                r.monitor = readUtf(b);
+                String[] keys = new String[b.getInt()];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = readUtf(b);
+                }
+                while (b.remaining() >= RECORD_SIZE) {
+                    long time = b.getLong();
+                    int host = b.getInt();
+                    int latency = b.getInt();
+                    int failedChecks = b.getInt();
+                    boolean live = b.get() != 0;
+                    b.get();
+                    b.get();
+                    int type = b.get();
+                    if (type == 0) {
+                        break;
+                    }
+                    if (time >= fromTime && time < toTime && host >= 0 && host < keys.length) {
+                        r.host = keys[host];
+                        r.type = type;
+                        r.time = time;
+                        r.live = live;
+                        r.latency = latency;
+                        r.failedChecks = failedChecks;
+                        consumer.accept(r);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String readUtf(ByteBuffer b) {
+        byte[] s = new byte[b.getShort()];
+        b.get(s);
+        return new String(s, StandardCharsets.UTF_8);
+    }
+}
@@ -8,22 +8,46 @@ package com.yahoo.viper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.MessageFormatter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A smarter error logger for exceptions generated by background threads.
  * The logger helps to minimize the noise in the error logs by condensing continuous errors.
+ * <p>
+ * Messages are slf4j-style templates (e.g. "[{}] {}: {}") and are deduplicated by template and host,
+ * so several hosts failing in different ways are each condensed separately. A repeated message is only
+ * counted; the template is not formatted unless the message is actually written to the log.
+ * This class is thread-safe.
  */
 public class ExceptionLogger {
+    // A repeated message is displayed at most once in this period
+    final static long SUPPRESS_PERIOD_MS = 60000;
+
+    // Caps the number of distinct templates remembered for a host
+    final static int MAX_TEMPLATES = 100;
+
+    // Used as the host key for messages that are not associated with a host
+    private final static Object NO_HOST = new Object();
+
     final Logger logger;
 
-    private String oldMsg;
-    private Level oldLevel;
-    private Throwable oldException;
-    private int suppressedMsgs;
-    private long lastDisplayTs;
+    // host -> template -> state of that message
+    private final Map<Object, Map<String, Entry>> entries = new ConcurrentHashMap<>();
 
-    public ExceptionLogger(Class cls) {
-        logger = LoggerFactory.getLogger(cls);
+    public ExceptionLogger(Class<?> cls) {
+        this(LoggerFactory.getLogger(cls));
+    }
+
+    /*
+     * Logs to the specified logger. Used by tests.
+     */
+    ExceptionLogger(Logger logger) {
+        this.logger = logger;
     }
 
     private enum Level {
@@ -32,82 +56,182 @@ public class ExceptionLogger {
         INFO
     }
 
+    /*
+     * The state of one distinct message.
+     */
+    private static class Entry {
+        final AtomicInteger suppressed = new AtomicInteger();
+        final AtomicLong lastDisplayTs = new AtomicLong();
+
+        // The arguments of the most recent call, or its exception if it had no arguments, used when a summary
+        // of the suppressed messages is logged. A single field, so that a summary never pairs the arguments of one
+        // call with the exception of another; the exception of a call with arguments is its last argument.
+        // Nothing is allocated for a suppressed call beyond its arguments.
+        volatile Object last;
+        volatile Level level;
+    }
+
     public void error(String msg, Throwable e) {
-        log(Level.ERROR, msg, e);
+        log(Level.ERROR, null, msg, null, e);
     }
 
     public void warn(String msg, Throwable e) {
-        log(Level.WARN, msg, e);
+        log(Level.WARN, null, msg, null, e);
     }
 
     public void info(String msg, Throwable e) {
-        log(Level.INFO, msg, e);
+        log(Level.INFO, null, msg, null, e);
     }
 
     public void error(String msg) {
-        log(Level.ERROR, msg, null);
+        log(Level.ERROR, null, msg, null, null);
     }
 
     public void warn(String msg) {
-        log(Level.WARN, msg, null);
+        log(Level.WARN, null, msg, null, null);
     }
 
     public void info(String msg) {
-        log(Level.INFO, msg, null);
+        log(Level.INFO, null, msg, null, null);
     }
 
-    private void log(Level newLevel, String newMsg, Throwable e) {
-        long now = System.currentTimeMillis();
-        newMsg = newMsg == null ? "null" : newMsg;
+    /**
+     * Logs an error for the specified host. Following the slf4j convention, if the last argument is
+     * a throwable, it is logged as the exception and not used to format the template.
+     *
+     * @param host     Possibly null object that the message is about. Messages are condensed per host.
+     * @param template Non-null slf4j-style message template.
+     * @param args     The values that replace the {} anchors in the template.
+     */
+    public void errorFor(Object host, String template, Object... args) {
+        log(Level.ERROR, host, template, args, null);
+    }
 
-        if (newMsg.equals(oldMsg)) {
-            suppressedMsgs++;
-            if (now - lastDisplayTs < 60000) {
-                // Skip printing
-                return;
-            }
-            newMsg = null;
+    /**
+     * Logs a warning for the specified host. See {@link #errorFor(Object, String, Object...)}.
+     *
+     * @param host     Possibly null object that the message is about.
+     * @param template Non-null slf4j-style message template.
+     * @param args     The values that replace the {} anchors in the template.
+     */
+    public void warnFor(Object host, String template, Object... args) {
+        log(Level.WARN, host, template, args, null);
+    }
+
+    /**
+     * Logs an info message for the specified host. See {@link #errorFor(Object, String, Object...)}.
+     *
+     * @param host     Possibly null object that the message is about.
+     * @param template Non-null slf4j-style message template.
+     * @param args     The values that replace the {} anchors in the template.
+     */
+    public void infoFor(Object host, String template, Object... args) {
+        log(Level.INFO, host, template, args, null);
+    }
+
+    /**
+     * Discards the suppression state kept for the specified host.
+     *
+     * @param host The host that is no longer logged about.
+     */
+    public void forget(Object host) {
+        entries.remove(host == null ? NO_HOST : host);
+    }
+
+    private void log(Level level, Object host, String template, Object[] args, Throwable e) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        template = template == null ? "null" : template;
+        boolean hasArgs = args != null && args.length > 0;
+        if (hasArgs) {
+            e = throwable(args);
         }
 
-        // Dump out suppressed messages
-        if (suppressedMsgs > 0) {
-            String msg = oldMsg;
-            if (suppressedMsgs > 1) {
-                msg += " [logged " + suppressedMsgs + " times]";
+        Map<String, Entry> templates = entries.computeIfAbsent(host == null ? NO_HOST : host,
+                k -> new ConcurrentHashMap<>());
+        Entry entry = templates.get(template);
+        if (entry == null) {
+            if (templates.size() >= MAX_TEMPLATES) {
+                flush(templates, null);
+                templates.clear();
             }
+            entry = templates.computeIfAbsent(template, k -> new Entry());
+        }
+        entry.level = level;
+        entry.last = hasArgs ? args : e;
 
-            switch (oldLevel) {
-                case ERROR:
-                    logger.error(msg, oldException);
-                    break;
-                case WARN:
-                    logger.warn(msg, oldException);
-                    break;
-                case INFO:
-                    logger.info(msg, oldException);
-                    break;
-            }
-            suppressedMsgs = 0;
+        long now = System.currentTimeMillis();
+        long last = entry.lastDisplayTs.get();
+        if (last != 0 && now - last < SUPPRESS_PERIOD_MS || !entry.lastDisplayTs.compareAndSet(last, now)) {
+            // Skip printing
+            entry.suppressed.incrementAndGet();
+            return;
         }
 
-        // Now log the new entry
-        if (newMsg != null) {
-            switch (newLevel) {
-                case ERROR:
-                    logger.error(newMsg, e);
-                    break;
-                case WARN:
-                    logger.warn(newMsg, e);
-                    break;
-                case INFO:
-                    logger.info(newMsg, e);
-                    break;
+        // Dump out suppressed messages of the same host, then the new entry
+        flush(templates, entry);
+        emit(level, template, args, e, entry.suppressed.getAndSet(0) + 1);
+    }
+
+    /*
+     * Logs a summary line for each of the messages that have been suppressed, except for the excluded one.
+     */
+    private void flush(Map<String, Entry> templates, Entry exclude) {
+        for (Map.Entry<String, Entry> me : templates.entrySet()) {
+            Entry entry = me.getValue();
+            if (entry != exclude && entry.suppressed.get() > 0) {
+                int count = entry.suppressed.getAndSet(0);
+                if (count > 0) {
+                    entry.lastDisplayTs.set(System.currentTimeMillis());
+                    Object last = entry.last;
+                    if (last instanceof Object[]) {
+                        Object[] args = (Object[]) last;
+                        emit(entry.level, me.getKey(), args, throwable(args), count);
+                    } else {
+                        emit(entry.level, me.getKey(), null, (Throwable) last, count);
+                    }
+                }
             }
-            oldLevel = newLevel;
-            oldMsg = newMsg;
-            oldException = e;
+        }
+    }
+
+    /*
+     * Returns the last of the arguments if it is a throwable, following the slf4j convention.
+     */
+    private static Throwable throwable(Object[] args) {
+        Object last = args[args.length - 1];
+        return last instanceof Throwable ? (Throwable) last : null;
+    }
+
+    private void emit(Level level, String template, Object[] args, Throwable e, int count) {
+        String msg = args == null || args.length == 0
+                ? template : MessageFormatter.arrayFormat(template, args).getMessage();
+        if (count > 1) {
+            msg += " [logged " + count + " times]";
         }
 
-        lastDisplayTs = now;
+        switch (level) {
+            case ERROR:
+                logger.error(msg, e);
+                break;
+            case WARN:
+                logger.warn(msg, e);
+                break;
+            case INFO:
+                logger.info(msg, e);
+                break;
+        }
+    }
+
+    private boolean isEnabled(Level level) {
+        switch (level) {
+            case ERROR:
+                return logger.isErrorEnabled();
+            case WARN:
+                return logger.isWarnEnabled();
+            default:
+                return logger.isInfoEnabled();
+        }
     }
 }
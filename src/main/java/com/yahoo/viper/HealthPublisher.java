@@ -0,0 +1,273 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the health of a monitor's hosts as a stream of {@link HealthUpdate}s. The interfaces follow
+ * java.util.concurrent.Flow, so subscribers get backpressure: an update is only delivered when the subscriber
+ * has requested one. While a subscriber has no outstanding demand, host changes are conflated, and the next
+ * update carries the latest state. A new subscriber first receives a snapshot of all hosts.
+ * <p>
+ * Updates for a subscriber are delivered one at a time from a pool thread; different subscribers
+ * do not wait for each other.
+ */
+public class HealthPublisher {
+    final private static ExceptionLogger excLogger = new ExceptionLogger(HealthPublisher.class);
+
+    /**
+     * Receives health updates. Mirrors java.util.concurrent.Flow.Subscriber.
+     *
+     * @param <T> The type of the items.
+     */
+    public interface Subscriber<T> {
+        /**
+         * Called once, before any other method, with the subscription used to request updates.
+         *
+         * @param subscription Non-null subscription.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Called with the next update, never more often than requested.
+         *
+         * @param item Non-null update.
+         */
+        void onNext(T item);
+
+        /**
+         * Called when the subscription fails, for example when a non-positive number of items is requested.
+         * No other method is called afterwards.
+         *
+         * @param throwable Non-null error.
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Called when the monitor is closed. No other method is called afterwards.
+         */
+        void onComplete();
+    }
+
+    /**
+     * Links a subscriber to the publisher. Mirrors java.util.concurrent.Flow.Subscription.
+     */
+    public interface Subscription {
+        /**
+         * Adds to the number of updates the subscriber is ready to receive.
+         *
+         * @param n A positive number of updates.
+         */
+        void request(long n);
+
+        /**
+         * Stops the delivery of updates. Updates may still be delivered for a short while.
+         */
+        void cancel();
+    }
+
+    final private HostMonitor monitor;
+    final private List<HostInfo> hinfos;
+    final private List<Sub> subs = new CopyOnWriteArrayList<>();
+    final private ExecutorService pool;
+    private volatile boolean closed;
+
+    /*
+     * The state of one subscriber.
+     */
+    private class Sub implements Subscription {
+        final Subscriber<? super HealthUpdate> subscriber;
+        final AtomicLong demand = new AtomicLong();
+
+        // Serializes the deliveries; the drain loop runs while this is non-zero
+        final AtomicInteger wip = new AtomicInteger();
+
+        // Guarded by this. The indexes of the hosts changed since the last update delivered.
+        final BitSet changed = new BitSet();
+        boolean first = true;
+
+        volatile boolean done;
+        volatile Throwable error;
+
+        Sub(Subscriber<? super HealthUpdate> subscriber) {
+            this.subscriber = subscriber;
+            changed.set(0, hinfos.size());
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("request must be positive: " + n);
+            } else {
+                long d;
+                do {
+                    d = demand.get();
+                } while (!demand.compareAndSet(d, d + n < 0 ? Long.MAX_VALUE : d + n));
+            }
+            schedule(this);
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+            subs.remove(this);
+        }
+    }
+
+    /**
+     * Creates a publisher for the hosts of a monitor. Use {@link HostMonitor#healthPublisher()}.
+     *
+     * @param monitor Non-null monitor.
+     */
+    HealthPublisher(HostMonitor monitor) {
+        this.monitor = monitor;
+        this.hinfos = Collections.unmodifiableList(new ArrayList<>(monitor.hostInfos()));
+        this.pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "viper-publisher-" + monitor.name);
+            t.setDaemon(true);
+            return t;
+        });
+        monitor.registerForHostEvents(event -> hostChanged(event.hostInfo));
+    }
+
+    /**
+     * Subscribes to the health updates. The subscriber's onSubscribe is called before this method returns.
+     * The first update requested is a snapshot of all hosts. If the monitor is closed, onComplete is called.
+     *
+     * @param subscriber Non-null subscriber.
+     */
+    public void subscribe(Subscriber<? super HealthUpdate> subscriber) {
+        Sub sub = new Sub(subscriber);
+        subscriber.onSubscribe(sub);
+        if (closed) {
+            if (!sub.done) {
+                sub.done = true;
+                subscriber.onComplete();
+            }
+            return;
+        }
+        if (!sub.done) {
+            subs.add(sub);
+        }
+        schedule(sub);
+    }
+
+    /*
+     * Records a host transition for every subscriber.
+     */
+    private void hostChanged(HostInfo hi) {
+        for (Sub sub : subs) {
+            synchronized (sub) {
+                sub.changed.set(hi.index);
+            }
+            schedule(sub);
+        }
+    }
+
+    /**
+     * Completes all subscriptions. Called when the monitor is closed.
+     */
+    void close() {
+        closed = true;
+        for (Sub sub : subs) {
+            schedule(sub);
+        }
+
+        // The scheduled deliveries still run
+        pool.shutdown();
+    }
+
+    private void schedule(Sub sub) {
+        if (sub.wip.getAndIncrement() == 0) {
+            try {
+                pool.execute(() -> drain(sub));
+            } catch (RejectedExecutionException e) {
+                sub.wip.set(0);
+            }
+        }
+    }
+
+    /*
+     * Delivers the pending update and terminal signals of a subscriber. Only one thread runs this at a time
+     * for a subscriber.
+     */
+    private void drain(Sub sub) {
+        int missed = 1;
+        while (true) {
+            if (!sub.done) {
+                if (sub.error != null) {
+                    terminate(sub);
+                    sub.subscriber.onError(sub.error);
+                } else if (sub.demand.get() > 0) {
+                    HealthUpdate update = next(sub);
+                    if (update != null) {
+                        sub.demand.decrementAndGet();
+                        try {
+                            sub.subscriber.onNext(update);
+                        } catch (Throwable e) {
+                            // A subscriber that throws is cancelled
+                            terminate(sub);
+                            excLogger.errorFor(null, "[{}] Health subscriber failed: {}", monitor.name,
+                                    e.getMessage(), e);
+                        }
+                        // There may be more changes
+                        continue;
+                    }
+                }
+                if (closed && !sub.done) {
+                    terminate(sub);
+                    sub.subscriber.onComplete();
+                }
+            }
+            missed = sub.wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void terminate(Sub sub) {
+        sub.done = true;
+        subs.remove(sub);
+    }
+
+    /*
+     * Returns the update for the changes pending for the subscriber, or null if nothing changed.
+     */
+    private HealthUpdate next(Sub sub) {
+        List<HostInfo> changed = new ArrayList<>();
+        boolean first;
+        synchronized (sub) {
+            if (sub.changed.isEmpty()) {
+                return null;
+            }
+            for (int i = sub.changed.nextSetBit(0); i >= 0; i = sub.changed.nextSetBit(i + 1)) {
+                changed.add(hinfos.get(i));
+            }
+            sub.changed.clear();
+            first = sub.first;
+            sub.first = false;
+        }
+
+        // The state is read after the changes are taken so that no transition can be missed
+        boolean[] live = new boolean[hinfos.size()];
+        for (HostInfo hi : hinfos) {
+            live[hi.index] = hi.isLive();
+        }
+        return new HealthUpdate(hinfos, live, changed, first);
+    }
+}
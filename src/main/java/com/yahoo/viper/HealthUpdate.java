@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the health of a monitor's hosts, delivered by a {@link HealthPublisher}.
+ * Along with the state of every host, an update lists the hosts that changed since the previous update
+ * delivered to the same subscriber. Changes that happen while a subscriber is not requesting updates are
+ * conflated, so a host may appear in the changed list and yet have the same state as before.
+ */
+public class HealthUpdate {
+    final private List<HostInfo> hosts;
+    final private boolean[] live;
+    final private List<HostInfo> changed;
+    final private boolean snapshot;
+
+    HealthUpdate(List<HostInfo> hosts, boolean[] live, List<HostInfo> changed, boolean snapshot) {
+        this.hosts = hosts;
+        this.live = live;
+        this.changed = Collections.unmodifiableList(changed);
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Returns all the hosts of the monitor.
+     *
+     * @return non-null list of hosts.
+     */
+    public List<HostInfo> hosts() {
+        return hosts;
+    }
+
+    /**
+     * Returns the hosts whose state may have changed since the previous update.
+     *
+     * @return non-null list of hosts.
+     */
+    public List<HostInfo> changed() {
+        return changed;
+    }
+
+    /**
+     * Returns true if this is the first update delivered to the subscriber. The first update
+     * lists all hosts as changed.
+     *
+     * @return true if this is the first update.
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Returns the state of a host at the time of this update.
+     *
+     * @param hinfo Non-null host of the monitor.
+     * @return true if the host was live.
+     */
+    public boolean isLive(HostInfo hinfo) {
+        return live[hinfo.index];
+    }
+
+    /**
+     * Returns the hosts that were live at the time of this update.
+     *
+     * @return non-null list of live hosts.
+     */
+    public List<HostInfo> liveHosts() {
+        List<HostInfo> result = new ArrayList<>();
+        for (HostInfo hi : hosts) {
+            if (live[hi.index]) {
+                result.add(hi);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.util.Arrays;
+
+/**
+ * The recent check history of a host. The most recent checks are kept in a fixed-size ring buffer:
+ * the time each check started, its latency or failure, and whether the host was live afterwards.
+ * Nothing is allocated after construction, neither when recording a check nor when answering a query.
+ * <p>
+ * Queries cover the checks that started within a window ending now. A window longer than the history
+ * covers only the checks still in the buffer. Enable the history with {@link HostMonitor#setHistorySize(int)}.
+ * This class is thread-safe.
+ */
+public class HostHistory {
+    // The latency recorded for a failed check
+    final private static int FAILED = -1;
+
+    final private Scheduler scheduler;
+    final private long[] times;
+    final private int[] latencies;
+    final private boolean[] live;
+    final private int[] scratch;
+
+    // The number of checks recorded so far
+    private long count;
+
+    /**
+     * Creates an empty history.
+     *
+     * @param scheduler Non-null source of the current time.
+     * @param capacity  The number of checks kept.
+     */
+    HostHistory(Scheduler scheduler, int capacity) {
+        this.scheduler = scheduler;
+        this.times = new long[capacity];
+        this.latencies = new int[capacity];
+        this.live = new boolean[capacity];
+        this.scratch = new int[capacity];
+    }
+
+    /**
+     * Records a check. Called by the host's checker once the outcome of the check is known.
+     *
+     * @param time      The time the check started.
+     * @param latencyMs The duration of a successful check, or a negative value if the check failed.
+     * @param isLive    True if the host is live after the check.
+     */
+    synchronized void record(long time, long latencyMs, boolean isLive) {
+        int i = (int) (count++ % times.length);
+        times[i] = time;
+        latencies[i] = latencyMs < 0 ? FAILED : (int) Math.min(latencyMs, Integer.MAX_VALUE);
+        live[i] = isLive;
+    }
+
+    /**
+     * Returns the maximum number of checks kept.
+     *
+     * @return the capacity of the history.
+     */
+    public int capacity() {
+        return times.length;
+    }
+
+    /**
+     * Returns the number of checks in the history.
+     *
+     * @return the number of checks, at most the capacity.
+     */
+    public synchronized int size() {
+        return (int) Math.min(count, times.length);
+    }
+
+    /**
+     * Returns the number of checks that started within the window.
+     *
+     * @param windowMs The length of the window ending now.
+     * @return the number of checks.
+     */
+    public synchronized int checks(long windowMs) {
+        return (int) (count - first(windowMs));
+    }
+
+    /**
+     * Returns the fraction of the checks in the window that succeeded.
+     *
+     * @param windowMs The length of the window ending now.
+     * @return the availability between 0 and 1, or NaN if there were no checks in the window.
+     */
+    public synchronized double availability(long windowMs) {
+        long from = first(windowMs);
+        if (from == count) {
+            return Double.NaN;
+        }
+        int ok = 0;
+        for (long n = from; n < count; n++) {
+            if (latencies[(int) (n % times.length)] != FAILED) {
+                ok++;
+            }
+        }
+        return (double) ok / (count - from);
+    }
+
+    /**
+     * Returns the number of times the host went up or down within the window.
+     * The transition into the first check of the window is counted if the previous check is still
+     * in the history.
+     *
+     * @param windowMs The length of the window ending now.
+     * @return the number of transitions.
+     */
+    public synchronized int flapCount(long windowMs) {
+        long from = Math.max(first(windowMs), count - times.length + 1);
+        int flaps = 0;
+        for (long n = Math.max(1, from); n < count; n++) {
+            if (live[(int) (n % times.length)] != live[(int) ((n - 1) % times.length)]) {
+                flaps++;
+            }
+        }
+        return flaps;
+    }
+
+    /**
+     * Returns a percentile of the latencies of the successful checks in the window.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @param windowMs   The length of the window ending now.
+     * @return the latency in milliseconds, or -1 if no check succeeded in the window.
+     */
+    public synchronized long latencyPercentile(double percentile, long windowMs) {
+        int size = 0;
+        for (long n = first(windowMs); n < count; n++) {
+            int latency = latencies[(int) (n % times.length)];
+            if (latency != FAILED) {
+                scratch[size++] = latency;
+            }
+        }
+        if (size == 0) {
+            return -1;
+        }
+        Arrays.sort(scratch, 0, size);
+        return scratch[(int) Math.max(0, Math.min(size - 1, Math.ceil(percentile / 100 * size) - 1))];
+    }
+
+    /*
+     * Returns the sequence number of the oldest check in the history that started within the window.
+     * The checks are recorded in the order they started, so the search stops at the first older check.
+     */
+    private long first(long windowMs) {
+        long since = scheduler.currentTimeMillis() - windowMs;
+        long oldest = Math.max(0, count - times.length);
+        long n = count;
+        while (n > oldest && times[(int) ((n - 1) % times.length)] >= since) {
+            n--;
+        }
+        return n;
+    }
+}
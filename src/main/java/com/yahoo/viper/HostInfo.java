@@ -7,13 +7,22 @@
 package com.yahoo.viper;
 
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * This class holds information about each registered host.
  */
 public class HostInfo {
-    final ExceptionLogger logger = new ExceptionLogger(HostInfo.class);
+    // Shared by all hosts. Messages are suppressed per host; the monitor forgets its hosts when it is closed.
+    final static ExceptionLogger logger = new ExceptionLogger(HostInfo.class);
+
+    final private static AtomicIntegerFieldUpdater<HostInfo> CHECK_SCHEDULED =
+            AtomicIntegerFieldUpdater.newUpdater(HostInfo.class, "checkScheduled");
+    final private static AtomicIntegerFieldUpdater<HostInfo> IN_FLIGHT =
+            AtomicIntegerFieldUpdater.newUpdater(HostInfo.class, "inFlight");
 
     // Non-null name.
     public String name;
@@ -24,23 +33,47 @@ public class HostInfo {
     // Valid if url is null.
     public int port = -1;
 
-    // The DNS-resolved value of name and port.
-    InetSocketAddress socketAddress;
+    // The DNS-resolved value of name and port. Unresolved if the name did not resolve when the host was created.
+    volatile InetSocketAddress socketAddress;
+
+    // If not null, the host is checked over TLS.
+    TlsCheck tls;
+
+    // If not null, the host is checked with this probe rather than a TCP connect or an HTTP GET.
+    volatile Probe probe;
 
-    // If true, indicates that the last check succeeded.
-    boolean live;
+    // The expiry time of the host's certificate chain, or 0 if unknown.
+    volatile long certificateExpiry;
 
     // If not null, refers to the checker that is currently checking this host.
     CheckTask checkTask;
 
-    // The time of the last check. It is set just before the check is attempted.
-    long lastCheck;
+    // The position of this host in the monitor's list and in its state table.
+    int index;
+
+    // The table that holds the check state of this host, such as whether it is live.
+    HostStateTable states = HostStateTable.UNBOUND;
+
+    // If not 0, the check period of this host, overriding the monitor's check period.
+    volatile int periodMs;
+
+    // If not 0, the time after which a check of this host is aborted, overriding the monitor's check period.
+    volatile int timeoutMs;
 
-    // The time of the last successful check. The host is considered live if this time is later than now-timeout.
-    long lastLive;
+    // 1 while the next check of a host with its own period is scheduled on the timing wheel.
+    private volatile int checkScheduled;
 
-    // Each failure increments this count.
-    int failedChecks;
+    // If not null, records the recent checks of this host.
+    volatile HostHistory history;
+
+    // The number of requests in flight to this host.
+    private volatile int inFlight;
+
+    // If not null, the host is drained and this completes once no requests are in flight.
+    volatile CompletableFuture<Void> drained;
+
+    // If not null, limits the number of requests in flight to this host.
+    volatile ConcurrencyLimit concurrencyLimit;
 
     /**
      * This check reads the contents from the specified URL. The check is considered successful only if
@@ -73,6 +106,101 @@ public class HostInfo {
         this.socketAddress = new InetSocketAddress(InetAddress.getByName(name), port);
     }
 
+    /**
+     * This check reads the contents from the specified HTTPS URL over the shared SSL context of the
+     * TLS check, so that repeated checks resume the TLS session. The check is considered successful only
+     * if a status of 200 is returned.
+     *
+     * @param url a non-null HTTPS URL to perform a check.
+     * @param tls a non-null TLS check configuration.
+     * @throws UnknownHostException hostname is unknown
+     * @throws MalformedURLException url is invalid
+     */
+    public HostInfo(String url, TlsCheck tls) throws UnknownHostException, MalformedURLException {
+        this(url);
+        this.tls = tls;
+    }
+
+    /**
+     * This check creates a socket connection to the specified host and port and completes a TLS
+     * handshake. No data is sent.
+     *
+     * @param name hostname
+     * @param port The port to connect to.
+     * @param tls  a non-null TLS check configuration.
+     * @throws UnknownHostException hostname is unknown
+     */
+    public HostInfo(String name, int port, TlsCheck tls) throws UnknownHostException {
+        this(name, port);
+        this.tls = tls;
+    }
+
+    /**
+     * Creates a host without resolving its name. Used by {@link HostSpecs}, which resolves names in bulk.
+     *
+     * @param name    hostname
+     * @param port    The port to connect to.
+     * @param tls     If not null, the TLS check configuration.
+     * @param address The resolved or unresolved address, or null if it is set later.
+     */
+    HostInfo(String name, int port, TlsCheck tls, InetSocketAddress address) {
+        this.name = name;
+        this.port = port;
+        this.tls = tls;
+        this.socketAddress = address;
+    }
+
+    /**
+     * Checks this host with a probe of its own protocol, e.g. a UDP request or a memcached version command,
+     * rather than a TCP connect or an HTTP GET. See {@link UdpProbe} and {@link LineProbe}.
+     * Only a host created with a name and port can have a probe.
+     *
+     * @param probe The probe, or null to use the default check.
+     * @throws IllegalStateException if this host was created with a URL.
+     */
+    public void setProbe(Probe probe) {
+        if (probe != null && url != null) {
+            throw new IllegalStateException("A probe needs a host and port, not a URL: " + url);
+        }
+        this.probe = probe;
+    }
+
+    /**
+     * Sets the check period of this host. By default, the host is checked at the monitor's check period.
+     * A host with its own period is checked independently of the other hosts.
+     *
+     * @param checkPeriodMs The check period in milliseconds, or 0 to use the monitor's check period.
+     */
+    public void setCheckPeriod(int checkPeriodMs) {
+        this.periodMs = checkPeriodMs;
+    }
+
+    /**
+     * Sets the time after which a check of this host is aborted by closing its connection. By default,
+     * the timeout is the monitor's check period.
+     *
+     * @param checkTimeoutMs The timeout in milliseconds, or 0 to use the monitor's check period.
+     */
+    public void setCheckTimeout(int checkTimeoutMs) {
+        this.timeoutMs = checkTimeoutMs;
+    }
+
+    /*
+     * Returns the effective check period of this host.
+     */
+    int checkPeriodMs() {
+        int p = periodMs;
+        return p > 0 ? p : checkTask.monitor.checkPeriodMs;
+    }
+
+    /*
+     * Returns the effective check timeout of this host.
+     */
+    int checkTimeoutMs() {
+        int t = timeoutMs;
+        return t > 0 ? t : checkTask.monitor.checkPeriodMs;
+    }
+
     /**
      * Returns true if the most recently completed check was successful.
      * In the case of a hung checker, false is returned.
@@ -80,16 +208,21 @@ public class HostInfo {
      * @return true if the host is live.
      */
     public boolean isLive() {
-        if (live && checkTask.isChecking()) {
-            long time = System.currentTimeMillis() - lastLive();
+        HostMonitor monitor = checkTask.monitor;
+        if (monitor.following) {
+            // The state is served from the table written by another process
+            return monitor.sharedTable.isLive(index, (monitor.retries + 2) * monitor.checkPeriodMs);
+        }
+        if (states.live[index] && checkTask.isChecking()) {
+            long time = monitor.scheduler.currentTimeMillis() - lastLive();
             // The threshold is increased by one check period to allow time for the check itself
-            if (time > (checkTask.monitor.retries + 2) * checkTask.monitor.checkPeriodMs) {
-                live = false;
-                logger.info(String.format("[%s] %s check is taking over %d ms. Marking this host unavailable.",
-                        checkTask.monitor.name, url == null ? socketAddress : url, time));
+            if (time > (monitor.retries + 2) * checkPeriodMs()) {
+                monitor.setLive(this, false);
+                logger.infoFor(this, "[{}] {} check is taking over {} ms. Marking this host unavailable.",
+                        monitor.name, url == null ? socketAddress : url, time);
             }
         }
-        return live;
+        return states.live[index];
     }
 
     /**
@@ -99,7 +232,8 @@ public class HostInfo {
      * @return true if the host is hung.
      */
     public boolean isHung() {
-        return System.currentTimeMillis() - lastCheck() > (checkTask.monitor.retries + 2) * checkTask.monitor.checkPeriodMs;
+        HostMonitor monitor = checkTask.monitor;
+        return monitor.scheduler.currentTimeMillis() - lastCheck() > (monitor.retries + 2) * checkPeriodMs();
     }
 
     /**
@@ -109,11 +243,138 @@ public class HostInfo {
      * @return the unix time of the last check.
      */
     public long lastCheck() {
-        return lastCheck;
+        return states.lastCheck[index];
     }
 
     public int failedChecks() {
-        return failedChecks;
+        return states.failedChecks[index];
+    }
+
+    /**
+     * Returns the number of times this host went down or came back since it first became live.
+     * A host that flaps often is worth investigating, or worth removing from the host list.
+     * See also {@link HostHistory#flapCount(long)}.
+     *
+     * @return the number of liveness transitions after the first.
+     */
+    public int flapCount() {
+        return states.flaps[index];
+    }
+
+    /**
+     * The duration of the most recent successful check. Before the
+     * first successful check, this field is 0.
+     *
+     * @return the latency of the last successful check in milliseconds.
+     */
+    public long latency() {
+        return states.latency[index];
+    }
+
+    /**
+     * The load reported by the host in its check responses, smoothed over the recent checks.
+     * See {@link HostMonitor#setLoadHint(String, double)}.
+     *
+     * @return the smoothed load, or NaN if the host has not reported its load since it last became live.
+     */
+    public double load() {
+        return states.load[index];
+    }
+
+    /**
+     * Counts a request to this host as in flight, so that a drain can tell when the host is idle.
+     * Requests sent with {@link HostMonitor#execute(java.util.function.Function)} or over a
+     * {@link ConnectionPool} are counted automatically. Each call must be followed by a call to
+     * {@link #endRequest()}.
+     */
+    public void beginRequest() {
+        IN_FLIGHT.incrementAndGet(this);
+    }
+
+    /**
+     * Counts a request to this host as completed. See {@link #beginRequest()}.
+     */
+    public void endRequest() {
+        if (IN_FLIGHT.decrementAndGet(this) <= 0) {
+            CompletableFuture<Void> d = drained;
+            if (d != null) {
+                d.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Counts a request to this host as completed and adjusts the host's concurrency limit with its outcome.
+     * See {@link HostMonitor#setConcurrencyLimit(int, int, int)}.
+     *
+     * @param latencyNanos The duration of the request, in nanoseconds.
+     * @param failed       True if the request failed, e.g. timed out or was rejected by the host.
+     */
+    public void endRequest(long latencyNanos, boolean failed) {
+        ConcurrencyLimit l = concurrencyLimit;
+        if (l != null) {
+            l.sample(latencyNanos, failed, inFlight);
+        }
+        endRequest();
+    }
+
+    /**
+     * Returns the current concurrency limit of this host. See {@link HostMonitor#setConcurrencyLimit(int, int, int)}.
+     *
+     * @return the maximum number of requests in flight, or Integer.MAX_VALUE if the host has no limit.
+     */
+    public int concurrencyLimit() {
+        ConcurrencyLimit l = concurrencyLimit;
+        return l == null ? Integer.MAX_VALUE : l.limit();
+    }
+
+    /**
+     * Returns true if the host has reached its concurrency limit. A saturated host is not returned by
+     * {@link HostMonitor#liveHost()} until some of its requests complete.
+     *
+     * @return true if the number of requests in flight is at the concurrency limit.
+     */
+    public boolean isSaturated() {
+        ConcurrencyLimit l = concurrencyLimit;
+        return l != null && inFlight >= l.limit();
+    }
+
+    /**
+     * Returns the number of requests in flight to this host. See {@link #beginRequest()}.
+     *
+     * @return the number of requests in flight.
+     */
+    public int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Returns true if the host is drained. A drained host is still checked but is not returned by
+     * {@link HostMonitor#liveHost()}. See {@link HostMonitor#drain(HostInfo, boolean)}.
+     *
+     * @return true if the host is drained.
+     */
+    public boolean isDrained() {
+        return states.drain[index] != 0;
+    }
+
+    /**
+     * The expiry time of the host's certificate chain, as seen by the most recent successful TLS check.
+     *
+     * @return the unix time at which the earliest certificate in the chain expires, or 0 if unknown.
+     */
+    public long certificateExpiry() {
+        return certificateExpiry;
+    }
+
+    /**
+     * Returns true if the state of this host was restored from a snapshot and
+     * has not yet been confirmed by a check.
+     *
+     * @return true if the state of this host is provisional.
+     */
+    public boolean isProvisional() {
+        return states.provisional[index];
     }
 
     /**
@@ -123,7 +384,116 @@ public class HostInfo {
      * @return the unix time of the most recent time that the host was found live.
      */
     public long lastLive() {
-        return lastLive;
+        return states.lastLive[index];
+    }
+
+    /**
+     * Returns the recent check history of this host. See {@link HostMonitor#setHistorySize(int)}.
+     *
+     * @return the history, or null if the monitor does not keep one.
+     */
+    public HostHistory history() {
+        return history;
+    }
+
+    /*
+     * Returns true if the last check succeeded, without looking for a hung check.
+     */
+    boolean live() {
+        return states.live[index];
+    }
+
+    /*
+     * Returns the time the host last became live, or 0 if it is not being ramped up.
+     */
+    long liveSince() {
+        return states.liveSince[index];
+    }
+
+    void setLastCheck(long time) {
+        states.lastCheck[index] = time;
+    }
+
+    void setLastLive(long time) {
+        states.lastLive[index] = time;
+    }
+
+    void setLatency(long latency) {
+        states.latency[index] = latency;
+    }
+
+    void setLiveSince(long time) {
+        states.liveSince[index] = time;
+    }
+
+    void setFailedChecks(int failedChecks) {
+        states.failedChecks[index] = failedChecks;
+    }
+
+    /*
+     * Records the outcome of a check. Returns the number of checks supporting the outcome: the number of
+     * consecutive checks with the same outcome or, if window is positive, the number of checks with the same
+     * outcome among the last window checks.
+     */
+    int recordOutcome(boolean ok, int window) {
+        long bits = states.outcomes[index] << 1 | (ok ? 1 : 0);
+        states.outcomes[index] = bits;
+        int n;
+        if (ok) {
+            states.failedChecks[index] = 0;
+            n = ++states.passedChecks[index];
+        } else {
+            states.passedChecks[index] = 0;
+            n = ++states.failedChecks[index];
+        }
+        if (window > 0) {
+            long mask = window >= 64 ? -1L : (1L << window) - 1;
+            n = Long.bitCount((ok ? bits : ~bits) & mask);
+        }
+        return n;
+    }
+
+    /*
+     * Folds a load reported by the host into its smoothed load.
+     */
+    void reportLoad(double load, double smoothing) {
+        double current = states.load[index];
+        states.load[index] = Double.isNaN(current) ? load : current + smoothing * (load - current);
+    }
+
+    void setProvisional(boolean provisional) {
+        states.provisional[index] = provisional;
+    }
+
+    /*
+     * Only called by HostMonitor.setLive(), which notifies the listeners.
+     */
+    void setLiveState(boolean live) {
+        states.live[index] = live;
+        states.passedChecks[index] = 0;
+        states.outcomes[index] = live ? -1L : 0;
+        if (!live) {
+            // The load reported before the host went down says nothing about it once it comes back
+            states.load[index] = Double.NaN;
+        }
+        if (!live || states.flaps[index] > 0) {
+            states.flaps[index]++;
+        }
+    }
+
+    /*
+     * Marks the next check of this host as scheduled. Returns false if it already was.
+     */
+    boolean markCheckScheduled() {
+        return CHECK_SCHEDULED.compareAndSet(this, 0, 1);
+    }
+
+    void clearCheckScheduled() {
+        checkScheduled = 0;
+    }
+
+    boolean isCheckScheduled() {
+        return checkScheduled != 0;
     }
 
     /**
@@ -135,6 +505,41 @@ public class HostInfo {
         return socketAddress;
     }
 
+    /*
+     * Returns the address to check. If the name did not resolve when this host was created, it is resolved
+     * again, so that a host whose name could not be resolved at start up is checked once it can be.
+     */
+    InetSocketAddress resolve() throws UnknownHostException {
+        InetSocketAddress a = socketAddress;
+        if (a.isUnresolved()) {
+            a = new InetSocketAddress(name, port);
+            if (a.isUnresolved()) {
+                throw new UnknownHostException(name);
+            }
+            socketAddress = a;
+        }
+        return a;
+    }
+
+    /*
+     * Returns a stable identifier for this host, used to match hosts across restarts.
+     */
+    String key() {
+        return url == null ? name + ":" + port : url.toString();
+    }
+
+    /*
+     * Returns a 64-bit FNV-1a hash of the key. Used to identify this host in compact binary formats.
+     */
+    long keyHash() {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key().getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
     /**
      * Returns a string representation of this host. For debugging purposes.
      *
@@ -142,9 +547,10 @@ public class HostInfo {
      */
     @Override
     public String toString() {
+        long now = checkTask == null ? System.currentTimeMillis() : checkTask.monitor.scheduler.currentTimeMillis();
         return String.format("HostInfo[%s, live=%b, lastLive=%dms, lastCheck=%dms]",
                 url == null ? socketAddress : url, isLive(),
-                lastLive == 0 ? 0 : lastLive - System.currentTimeMillis(),
-                lastCheck - System.currentTimeMillis());
+                lastLive() == 0 ? 0 : lastLive() - now,
+                lastCheck() - now);
     }
 }
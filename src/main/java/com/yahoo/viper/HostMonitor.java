@@ -9,12 +9,19 @@ package com.yahoo.viper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * This is the main class used to monitor a set of hosts. See the README for usage information.
@@ -23,11 +30,17 @@ public class HostMonitor {
 
     final private static Logger logger = LoggerFactory.getLogger(HostMonitor.class);
     final private static ExceptionLogger excLogger = new ExceptionLogger(HostMonitor.class);
+
+    // If not null, limits the checks of all monitors in this process
+    static volatile ProbeBudget probeBudget;
     final private LoadBalancingPolicy loadBalancingPolicy;
-    final private ExecutorService checkerPool;
+    final ExecutorService checkerPool;
+
+    // The source of time and threads. Replaced by a simulation's virtual scheduler
+    final Scheduler scheduler;
 
     // This value is used to prevent false errors during the start up of this instance
-    final private long startTime = System.currentTimeMillis();
+    final private long startTime;
 
     // Used by other classes in this package
     final private List<HostInfo> hinfos;
@@ -42,6 +55,67 @@ public class HostMonitor {
     // An index used to implement the round-robin policy
     private AtomicInteger roundRobinIx = new AtomicInteger();
 
+    // The check state of the hosts, indexed like hinfos
+    final private HostStateTable states;
+
+    // The drain flags kept in the state table
+    final private static byte DRAINED = 1;
+    final private static byte UNDRAIN_ON_RECOVERY = 2;
+    final private static byte WENT_DOWN = 4;
+
+    // The live hosts, in the order of hinfos. Rebuilt on every host transition so that the policies are O(1)
+    private volatile HostInfo[] liveHosts = new HostInfo[0];
+
+    // The maximum number of candidates considered when hosts are being ramped up
+    final static int MAX_SELECTION_ATTEMPTS = 16;
+
+    // The slow start settings, or null if disabled
+    private volatile SlowStart slowStart;
+
+    // The time at which the last host in slow start reaches its full weight
+    private volatile long slowStartUntil;
+
+    // If not null, the state of the hosts is periodically saved to this snapshot
+    private volatile LivenessSnapshot snapshot;
+
+    // How often the snapshot is saved
+    final static int SNAPSHOT_PERIOD_MS = 10000;
+
+    // If not null, the host states are shared with other processes through this table
+    volatile SharedHealthTable sharedTable;
+
+    // True while the host states are read from the shared table rather than checked by this instance
+    volatile boolean following;
+
+    // If not null, check results are exchanged with peers on other machines
+    private volatile PeerGossip gossip;
+
+    // The response header in which hosts report their load, and the weight of each report in the smoothed load
+    volatile String loadHeader = "X-Load";
+    volatile double loadSmoothing = 0.3;
+
+    // If not null, every check and transition is appended to this journal
+    volatile EventJournal journal;
+
+    // The number of successful checks before a host is live, and of failed checks before it is down.
+    // If the window is positive, the checks are counted among the last window checks rather than consecutively.
+    volatile int riseChecks = 1;
+    volatile int fallChecks;
+    volatile int hysteresisWindow;
+
+    // The hosts ranked for this client's subset, as indexes into hinfos, or null if all hosts are monitored
+    private int[] subsetOrder;
+
+    // The number of live hosts wanted in the subset, and the number of ranked hosts currently monitored
+    private int subsetSize;
+    private int subsetEnd;
+
+    // Executes requests with hedging and failover
+    private volatile RequestExecutor requestExecutor;
+
+    // If not null, publishes the health of the hosts to subscribers
+    private HealthPublisher healthPublisher;
+
     // Number of host info.
     private int numHosts;
 
@@ -50,6 +124,9 @@ public class HostMonitor {
 
     List<Consumer<HostMonitorEvent>> listeners = new ArrayList<>();
 
+    // Notified on every host transition, from the thread that made the transition
+    final private List<Consumer<HostMonitorEvent>> hostListeners = new CopyOnWriteArrayList<>();
+
     /**
      * Monitors the specified list of hosts. All hosts will be initially unavailable. The true host status
      * will be available no later than the specified check period.
@@ -63,23 +140,111 @@ public class HostMonitor {
      */
     public HostMonitor(String name, List<HostInfo> hinfos, LoadBalancingPolicy loadBalancingPolicy,
                        int checkPeriodMs, int retries) {
+        this(name, hinfos, loadBalancingPolicy, checkPeriodMs, retries, new Options());
+    }
+
+    /**
+     * Monitors the specified list of hosts with options that take effect before the first round of checks.
+     * See {@link #HostMonitor(String, List, LoadBalancingPolicy, int, int)}.
+     *
+     * @param name                Non-null string that is displayed with all log entries from this instance.
+     * @param hinfos              Non-null list of hosts to monitor.
+     * @param loadBalancingPolicy Determines which live host is returned.
+     * @param checkPeriodMs       The frequency of checking the host. In Milliseconds.
+     * @param retries             The number of failed checks before the host is considered down.
+     * @param options             Non-null options.
+     */
+    public HostMonitor(String name, List<HostInfo> hinfos, LoadBalancingPolicy loadBalancingPolicy,
+                       int checkPeriodMs, int retries, Options options) {
+        this(name, hinfos, loadBalancingPolicy, checkPeriodMs, retries, options, Scheduler.SYSTEM);
+    }
+
+    /*
+     * Monitors the hosts using the specified scheduler. Used by simulations.
+     */
+    HostMonitor(String name, List<HostInfo> hinfos, LoadBalancingPolicy loadBalancingPolicy,
+                int checkPeriodMs, int retries, Options options, Scheduler scheduler) {
+        this.scheduler = scheduler;
+        this.startTime = scheduler.currentTimeMillis();
         this.name = name;
         this.hinfos = hinfos;
         this.loadBalancingPolicy = loadBalancingPolicy;
         this.checkPeriodMs = checkPeriodMs;
         this.retries = retries;
+        this.fallChecks = retries + 1;
         this.checkerPool = Executors.newFixedThreadPool(hinfos.size());
         numHosts = hinfos.size();
         liveCount = 0;
 
-        // Create the check tasks
-        long now = System.currentTimeMillis();
-        for (HostInfo hi : hinfos) {
+        // Create the check tasks and bind the hosts to their rows in the state table
+        states = new HostStateTable(hinfos.size());
+        for (int i = 0; i < hinfos.size(); i++) {
+            HostInfo hi = hinfos.get(i);
             hi.checkTask = new CheckTask(this, hi);
-            hi.lastCheck = hi.lastLive = 0;
+            hi.index = i;
+            hi.states = states;
+        }
+
+        requestExecutor = new RequestExecutor(this, 95, 3, 0.1);
+
+        // Choose the subset before any host is live, so that no host leaves it with a transition
+        if (options.subsetClientId != null && options.subsetSize < numHosts) {
+            initSubset(options.subsetClientId, options.subsetSize);
         }
 
-        new BgThread().start();
+        // Restore the snapshot before the first check can race it
+        if (options.snapshotFile != null) {
+            restoreSnapshot(options.snapshotFile, options.snapshotMaxAgeMs);
+        }
+        scheduler.start(new BgThread());
+    }
+
+    /**
+     * The options of a monitor that must be in place before its first round of checks.
+     * Pass them to {@link HostMonitor#HostMonitor(String, List, LoadBalancingPolicy, int, int, Options)}.
+     */
+    public static class Options {
+        private File snapshotFile;
+        private long snapshotMaxAgeMs;
+        private String subsetClientId;
+        private int subsetSize;
+
+        /**
+         * Enables warm starts. The last known state of the hosts is restored from the specified file, if
+         * it exists and is recent enough. Hosts that were live are served provisionally until their first
+         * check confirms or refutes them, so that {@link #liveHost()} does not block after a restart.
+         * From then on, the state is saved to the file periodically and when the monitor is closed.
+         *
+         * @param file     Non-null file that holds the snapshot.
+         * @param maxAgeMs A snapshot written longer ago than this is ignored.
+         * @return this object.
+         */
+        public Options setSnapshot(File file, long maxAgeMs) {
+            this.snapshotFile = file;
+            this.snapshotMaxAgeMs = maxAgeMs;
+            return this;
+        }
+
+        /**
+         * Monitors only a subset of the hosts. With thousands of clients each monitoring the same thousands of
+         * hosts, the checks alone can load the hosts. With subsetting, each client checks and selects only the
+         * hosts of its own subset. The subsets are chosen by rendezvous hashing of the client ID with each host:
+         * a client always gets the same subset, the clients are spread evenly over the hosts, and adding or
+         * removing a host moves only the clients that it joins or leaves.
+         * <p>
+         * When fewer hosts than the subset size are live, the subset is expanded with the next hosts in the
+         * client's ranking until enough are live, and it shrinks back once the original hosts have recovered.
+         *
+         * @param clientId Identifies this client, e.g. the host name and port of the process. Clients with the
+         *                 same ID get the same subset. Null to monitor all hosts.
+         * @param size     The number of live hosts wanted in the subset.
+         * @return this object.
+         */
+        public Options setSubset(String clientId, int size) {
+            this.subsetClientId = clientId;
+            this.subsetSize = size;
+            return this;
+        }
     }
 
     /**
@@ -92,6 +257,41 @@ public class HostMonitor {
         listeners.add(listener);
     }
 
+    /**
+     * Registers a listener for host events. A host event is generated, with the hostInfo field set,
+     * as soon as a single host goes up or down. The listener is called from the thread that detected
+     * the transition, typically a checker thread, while holding this monitor's lock. It should return
+     * quickly and must not wait for other threads that use this monitor.
+     *
+     * @param listener non-null listener for host events.
+     */
+    public void registerForHostEvents(Consumer<HostMonitorEvent> listener) {
+        hostListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener registered with {@link #registerForHostEvents(Consumer)}. The listener may still
+     * receive an event that was being delivered when this method was called.
+     *
+     * @param listener non-null listener for host events.
+     */
+    public void unregisterForHostEvents(Consumer<HostMonitorEvent> listener) {
+        hostListeners.remove(listener);
+    }
+
+    /**
+     * Returns the publisher of the health of the hosts. Subscribers receive a snapshot of all hosts
+     * followed by an update whenever hosts go up or down, as fast as they request them.
+     *
+     * @return non-null publisher.
+     */
+    public synchronized HealthPublisher healthPublisher() {
+        if (healthPublisher == null) {
+            healthPublisher = new HealthPublisher(this);
+        }
+        return healthPublisher;
+    }
+
     /**
      * Used primarily to debug issues. When enabled, all the exceptions encountered by checking a host
      * will show up in the logs as full ERROR stack traces.
@@ -102,6 +302,567 @@ public class HostMonitor {
         showFullStackTraces = enable;
     }
 
+    /*
+     * Restores the snapshot, if any, and saves the host states to it from now on. Called by the constructor.
+     */
+    private void restoreSnapshot(File file, long maxAgeMs) {
+        LivenessSnapshot s = new LivenessSnapshot(file);
+        try {
+            int lives = s.load(hinfos, maxAgeMs);
+            if (lives > 0) {
+                liveCount = Math.max(liveCount, lives);
+                logger.info("[{}] Restored {} live hosts from {}", name, lives, s);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn(String.format("[%s] Failed to restore snapshot %s", name, s), e);
+        }
+        snapshot = s;
+    }
+
+    /**
+     * Shares the host states with the other processes on this machine that monitor the same hosts.
+     * Only one process, the one holding the lock on the file, checks the hosts and publishes their state
+     * into the memory-mapped file. The other processes stop checking and serve {@link #liveHost()} from
+     * the file. If the checking process dies, another one takes over.
+     *
+     * @param file Non-null file shared by all processes. All processes must monitor the same list of hosts.
+     * @throws IOException if the file could not be opened.
+     */
+    public void setSharedTable(File file) throws IOException {
+        SharedHealthTable t = new SharedHealthTable(file, hinfos);
+        if (t.tryAcquire()) {
+            logger.info("[{}] Checking hosts for other processes through {}", name, t);
+        }
+        sharedTable = t;
+    }
+
+    /**
+     * Exchanges check results with peer monitors on other machines over UDP. A host is marked down as
+     * soon as the specified number of monitors, including this one, have recently failed to check it,
+     * rather than after this monitor's retries run out. A host that a peer finds live is checked right away.
+     * While peers report the same state as this monitor, each host is checked every other period.
+     * All peers should use the same check period. Results are only accepted from the addresses of the peers,
+     * or from any member of the multicast group. They are not authenticated, so keep the port on a trusted network.
+     *
+     * @param port   The local UDP port on which check results are received from peers.
+     * @param peers  Non-null list of peer addresses, or a single multicast group address.
+     * @param quorum The number of monitors that must have failed a host's check to mark it down.
+     * @throws IOException if the socket could not be created.
+     */
+    public void setGossip(int port, List<InetSocketAddress> peers, int quorum) throws IOException {
+        PeerGossip g = new PeerGossip(this, port, peers, quorum);
+        g.start();
+        gossip = g;
+    }
+
+    /**
+     * Appends a record of every check and every liveness transition to a journal, for post-mortems.
+     * The records are written by a background thread to memory-mapped segment files in the directory,
+     * so the checks are not slowed down. Read the journal with the journal tool or
+     * {@link EventJournal#read(File, long, long, Consumer)}.
+     *
+     * @param dir         Non-null directory of the journal segments. It is created if necessary.
+     * @param segmentSize The size of a segment in bytes. A record takes 24 bytes.
+     * @param maxSegments The number of segments kept. The oldest segment is deleted when a new one is created.
+     * @throws IOException if the first segment could not be created.
+     */
+    public void setJournal(File dir, int segmentSize, int maxSegments) throws IOException {
+        EventJournal old = journal;
+        journal = new EventJournal(dir, name, hinfos, segmentSize, maxSegments);
+        if (old != null) {
+            try {
+                old.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Limits the checks of all monitors in this process. During an incident, many checks can hang at once
+     * and, on recovery, every monitor re-checks its hosts at the same moment. With a budget, at most the
+     * specified number of checks are in flight and checks are started no faster than the specified rate.
+     * Checks that must wait are queued with hosts that are down first, then the least recently checked.
+     *
+     * @param maxConcurrentProbes The maximum number of checks in flight. Set to 0 to remove the budget.
+     * @param probesPerSecond     The maximum rate at which checks are started. Must be positive unless the
+     *                            budget is removed.
+     * @throws IllegalArgumentException if probesPerSecond is not positive.
+     */
+    public static synchronized void setProbeBudget(int maxConcurrentProbes, double probesPerSecond) {
+        ProbeBudget b = maxConcurrentProbes > 0 ? new ProbeBudget(maxConcurrentProbes, probesPerSecond) : null;
+        ProbeBudget old = probeBudget;
+        probeBudget = b;
+        if (b != null) {
+            b.start();
+        }
+        if (old != null) {
+            // Hand the waiting checks over
+            for (CheckTask task : old.close()) {
+                task.monitor.checkNow(task.hinfo);
+            }
+        }
+    }
+
+    /*
+     * Checks the host as soon as possible rather than waiting for the next period.
+     */
+    void checkNow(HostInfo hi) {
+        try {
+            submitCheck(hi);
+        } catch (RejectedExecutionException e) {
+            // The monitor is being closed
+        }
+    }
+
+    /*
+     * Runs a check of the host, subject to the process-wide probe budget if there is one.
+     */
+    void submitCheck(HostInfo hi) {
+        ProbeBudget b = probeBudget;
+        if (b != null && !scheduler.isVirtual()) {
+            b.submit(hi.checkTask);
+        } else {
+            submitChecker(hi.checkTask);
+        }
+    }
+
+    /*
+     * Schedules the next check of a host that has its own check period. Called when a check completes.
+     * At most one check of the host is scheduled at a time.
+     */
+    void scheduleNextCheck(HostInfo hi) {
+        int periodMs = hi.periodMs;
+        if (periodMs > 0) {
+            scheduleCheck(hi, Math.max(0, hi.lastCheck() + periodMs - scheduler.currentTimeMillis()));
+        }
+    }
+
+    private void scheduleCheck(HostInfo hi, long delayMs) {
+        if (!runBgThread || !hi.markCheckScheduled()) {
+            return;
+        }
+        scheduler.schedule(() -> {
+            hi.clearCheckScheduled();
+            if (following || gossip != null && gossip.skipCheck(hi)) {
+                // Try again in the next period
+                scheduleCheck(hi, hi.periodMs);
+            } else if (!states.outside[hi.index]) {
+                checkNow(hi);
+            }
+        }, delayMs);
+    }
+
+    /*
+     * Hands a check to the checker pool. Throws RejectedExecutionException if this monitor is closed.
+     */
+    void submitChecker(CheckTask task) {
+        scheduler.execute(task);
+    }
+
+    /*
+     * Hands a check dispatched by the probe budget to the checker pool. The run releases the budget when it
+     * completes. The budget is bypassed when time is virtual, so the check does not go through the scheduler.
+     */
+    void submitChecker(CheckTask task, ProbeBudget budget) {
+        checkerPool.submit(() -> task.run(budget));
+    }
+
+    /*
+     * All changes to the liveness of a host go through this method so that host listeners are notified.
+     * Transitions are serialized, so that two threads that find a host down at the same time, e.g. its checker
+     * and the gossip thread, make a single transition, and listeners see the transitions of a host in order.
+     * Transitions are rare, and updateLiveHosts() takes the same lock, so one lock serves all hosts.
+     */
+    void setLive(HostInfo hi, boolean live) {
+        if (hi.live() == live || live && states.outside[hi.index]) {
+            return;
+        }
+        synchronized (this) {
+            if (hi.live() == live || live && states.outside[hi.index]) {
+                // Another thread made the transition first
+                return;
+            }
+            if (live) {
+                // A host that comes back after start up is ramped up. A restored host has been live all along.
+                long now = scheduler.currentTimeMillis();
+                SlowStart ss = slowStart;
+                if (ss != null && !hi.isProvisional() && now - startTime >= 2 * checkPeriodMs) {
+                    hi.setLiveSince(now);
+                    slowStartUntil = Math.max(slowStartUntil, now + ss.windowMs);
+                } else {
+                    hi.setLiveSince(0);
+                }
+            }
+            hi.setLiveState(live);
+            if (states.drain[hi.index] != 0) {
+                drainedHostChanged(hi, live);
+            }
+            updateLiveHosts();
+            EventJournal j = journal;
+            if (j != null) {
+                j.transition(hi, scheduler.currentTimeMillis());
+            }
+            if (!hostListeners.isEmpty()) {
+                HostMonitorEvent event = new HostMonitorEvent();
+                event.hostMonitor = this;
+                event.hostInfo = hi;
+                event.live = live;
+                event.numLiveHosts = liveCount;
+                event.message = String.format("[%s] %s is %s", name, hi.url == null ? hi.socketAddress : hi.url,
+                        live ? "now live" : "unavailable");
+                for (Consumer<HostMonitorEvent> listener : hostListeners) {
+                    try {
+                        listener.accept(event);
+                    } catch (RuntimeException e) {
+                        excLogger.error(e.getMessage(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Rebuilds the snapshot of live hosts used by the load balancing policies.
+     */
+    private synchronized void updateLiveHosts() {
+        HostInfo[] live = new HostInfo[states.countSelectable()];
+        int n = 0;
+        for (int i = 0; i < states.size() && n < live.length; i++) {
+            if (states.isSelectable(i)) {
+                live[n++] = hinfos.get(i);
+            }
+        }
+        liveHosts = n == live.length ? live : Arrays.copyOf(live, n);
+    }
+
+    /*
+     * Makes the latest state of the host visible to other processes. Called by the host's checker.
+     */
+    void publish(HostInfo hi) {
+        SharedHealthTable t = sharedTable;
+        if (t != null) {
+            t.publish(hi.index, hi);
+        }
+    }
+
+    /**
+     * Enables slow start. A host that becomes live after the monitor has started, typically one that
+     * recovered, is not immediately given its full share of traffic. Instead, its selection weight ramps
+     * up linearly from the minimum weight to full over the window. This gives a cold host time to warm
+     * up. Slow start applies to all load balancing policies.
+     *
+     * @param windowMs  The duration of the ramp. Set to 0 to disable slow start; hosts being ramped up
+     *                  are then given their full share of traffic right away.
+     * @param minWeight The initial fraction of the host's full share of traffic, between 0 and 1.
+     */
+    public synchronized void setSlowStart(long windowMs, double minWeight) {
+        if (windowMs > 0) {
+            slowStart = new SlowStart(windowMs, minWeight);
+            return;
+        }
+        slowStart = null;
+        slowStartUntil = 0;
+        for (HostInfo hi : hinfos) {
+            hi.setLiveSince(0);
+        }
+    }
+
+    /*
+     * The slow start settings. Published as one object so that a selection never combines the window of one
+     * setting with the minimum weight of another.
+     */
+    private static class SlowStart {
+        final long windowMs;
+        final double minWeight;
+
+        SlowStart(long windowMs, double minWeight) {
+            this.windowMs = windowMs;
+            this.minWeight = minWeight;
+        }
+    }
+
+    /**
+     * Configures how URL hosts report their load to the {@link LoadBalancingPolicy#LEAST_LOADED} policy.
+     * A host reports its load, such as its CPU utilization or queue depth, as a number in a response header
+     * of its checks; lower is better. Each report is folded into the host's smoothed load with an exponentially
+     * weighted moving average, so that a single spike does not move all the traffic away from the host.
+     * The defaults are the X-Load header and a smoothing of 0.3.
+     *
+     * @param header    Non-null name of the response header.
+     * @param smoothing The weight of the latest report, between 0 and 1. Use 1 for no smoothing.
+     * @throws IllegalArgumentException if the header is null or the smoothing is not between 0 and 1.
+     */
+    public void setLoadHint(String header, double smoothing) {
+        if (header == null) {
+            throw new IllegalArgumentException("The load header is null");
+        }
+        if (!(smoothing >= 0 && smoothing <= 1)) {
+            throw new IllegalArgumentException("The load smoothing must be between 0 and 1: " + smoothing);
+        }
+        loadHeader = header;
+        loadSmoothing = smoothing;
+    }
+
+    /**
+     * Sets how much evidence it takes to change the liveness of a host. By default, a host is live after one
+     * successful check and down after retries + 1 consecutive failed checks, so a flapping host goes in and
+     * out of rotation every period. With higher counts, a host changes state only when the change is sustained.
+     * <p>
+     * If window is positive, the checks are counted among the most recent window checks rather than
+     * consecutively: e.g. a rise of 8 and a fall of 4 out of 10 means a host is live once 80% of its
+     * recent checks succeed, and down once 40% of them fail. The window starts over on every transition.
+     *
+     * @param rise   The number of successful checks before a down host is live, at least 1.
+     * @param fall   The number of failed checks before a live host is down, at least 1.
+     * @param window The number of recent checks the counts apply to, at most 64, or 0 for consecutive checks.
+     */
+    public void setHysteresis(int rise, int fall, int window) {
+        if (rise < 1 || fall < 1 || window < 0 || window > 64 || window > 0 && Math.max(rise, fall) > window) {
+            throw new IllegalArgumentException(String.format("Invalid hysteresis: rise=%d fall=%d window=%d",
+                    rise, fall, window));
+        }
+        riseChecks = rise;
+        fallChecks = fall;
+        hysteresisWindow = window;
+    }
+
+    /**
+     * Limits the number of requests in flight to each host, so that a host that slows down is given less
+     * traffic before it tips over. The limit of each host adapts to the latency of its requests: it grows while
+     * the requests are fast and shrinks when they fail or take much longer than usual. A host at its limit is
+     * skipped by {@link #liveHost()}, which returns null if all live hosts are at their limit, and
+     * {@link #execute(Function)} fails fast with a RejectedExecutionException as the cause.
+     * <p>
+     * The requests in flight are counted with {@link HostInfo#beginRequest()}, and their latencies are reported
+     * with {@link HostInfo#endRequest(long, boolean)}. Both are done automatically by execute(). The limit is
+     * soft: callers that select the same host at the same time may exceed it by a few requests.
+     *
+     * @param initial The initial limit of each host, or 0 for no limit.
+     * @param min     The lowest limit, at least 1.
+     * @param max     The highest limit.
+     */
+    public void setConcurrencyLimit(int initial, int min, int max) {
+        if (initial > 0 && (min < 1 || max < min)) {
+            throw new IllegalArgumentException(String.format("Invalid concurrency limit: min=%d max=%d", min, max));
+        }
+        for (HostInfo hi : hinfos) {
+            hi.concurrencyLimit = initial > 0 ? new ConcurrencyLimit(initial, min, max) : null;
+        }
+    }
+
+    /**
+     * Takes a host out of rotation: from now on, it is not returned by {@link #liveHost()} nor used by
+     * {@link #execute(Function)}, while its checks continue. Drain a host before stopping it, e.g. during a
+     * rolling deploy, so that no request fails during the retries it takes the monitor to notice that it is down.
+     *
+     * @param hi                Non-null host of this monitor.
+     * @param undrainOnRecovery If true, the host is undrained automatically once it has gone down and become
+     *                          live again, e.g. after it has been restarted.
+     * @return non-null future that completes once no requests are in flight to the host, or is cancelled if
+     *         the host is undrained first. See {@link HostInfo#beginRequest()}.
+     */
+    public synchronized CompletableFuture<Void> drain(HostInfo hi, boolean undrainOnRecovery) {
+        CompletableFuture<Void> d = hi.drained;
+        if (d == null) {
+            d = new CompletableFuture<>();
+            d.thenRun(() -> logger.info("[{}] {} is drained; no requests are in flight", name,
+                    hi.url == null ? hi.socketAddress : hi.url));
+            hi.drained = d;
+        }
+        states.drain[hi.index] = (byte) (DRAINED | (undrainOnRecovery ? UNDRAIN_ON_RECOVERY : 0));
+        updateLiveHosts();
+        logger.info("[{}] Draining {}; {} requests in flight", name, hi.url == null ? hi.socketAddress : hi.url,
+                hi.inFlight());
+        if (hi.inFlight() <= 0) {
+            d.complete(null);
+        }
+        return d;
+    }
+
+    /**
+     * Puts a drained host back into rotation. It is returned by {@link #liveHost()} again as soon as it is live.
+     * If requests are still in flight to the host, the future returned by the drain is cancelled, so that
+     * nothing waits for a drain that was abandoned.
+     *
+     * @param hi Non-null host of this monitor.
+     */
+    public synchronized void undrain(HostInfo hi) {
+        if (states.drain[hi.index] == 0) {
+            return;
+        }
+        states.drain[hi.index] = 0;
+        CompletableFuture<Void> d = hi.drained;
+        hi.drained = null;
+        if (d != null) {
+            d.cancel(false);
+        }
+        updateLiveHosts();
+        logger.info("[{}] Undrained {}", name, hi.url == null ? hi.socketAddress : hi.url);
+    }
+
+    /*
+     * Undrains a host that is undrained on recovery once it has gone down and come back.
+     */
+    private synchronized void drainedHostChanged(HostInfo hi, boolean live) {
+        byte flags = states.drain[hi.index];
+        if ((flags & UNDRAIN_ON_RECOVERY) == 0) {
+            return;
+        }
+        if (!live) {
+            states.drain[hi.index] = (byte) (flags | WENT_DOWN);
+        } else if ((flags & WENT_DOWN) != 0) {
+            undrain(hi);
+        }
+    }
+
+    /*
+     * Ranks the hosts for the client's subset and leaves out all but the first size hosts. Called by the
+     * constructor, while no host is live. See Options.setSubset().
+     */
+    private void initSubset(String clientId, int size) {
+        // Rank the hosts by their score for this client, highest first
+        long[] scores = new long[numHosts];
+        Integer[] order = new Integer[numHosts];
+        for (int i = 0; i < numHosts; i++) {
+            scores[i] = subsetScore(clientId, hinfos.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(scores[b], scores[a]));
+        subsetOrder = new int[numHosts];
+        for (int r = 0; r < numHosts; r++) {
+            subsetOrder[r] = order[r];
+        }
+        subsetSize = Math.max(1, size);
+        subsetEnd = subsetSize;
+        for (int r = subsetEnd; r < numHosts; r++) {
+            states.outside[subsetOrder[r]] = true;
+        }
+        logger.info("[{}] Monitoring a subset of {} of {} hosts as client {}", name, subsetSize, numHosts, clientId);
+    }
+
+    /*
+     * Returns the rendezvous score of a host for a client: a hash of the client ID and the host key.
+     */
+    private static long subsetScore(String clientId, HostInfo hi) {
+        long h = hi.keyHash();
+        for (int i = 0; i < clientId.length(); i++) {
+            h ^= clientId.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        // The finalizer of MurmurHash3, so that similar keys get unrelated scores
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /*
+     * Monitors the first end hosts of the subset ranking and stops monitoring the others.
+     * A host that leaves the subset is no longer live.
+     */
+    private synchronized void resizeSubset(int end) {
+        subsetEnd = end;
+        for (int r = 0; r < subsetOrder.length; r++) {
+            int i = subsetOrder[r];
+            boolean outside = r >= end;
+            if (outside != states.outside[i]) {
+                HostInfo hi = hinfos.get(i);
+                states.outside[i] = outside;
+                if (outside) {
+                    setLive(hi, false);
+                    hi.setFailedChecks(0);
+                }
+            }
+        }
+    }
+
+    /*
+     * Expands the subset when too few of its hosts are live, and shrinks it back once enough of the
+     * first ranked hosts are live. A host that has not been checked since it joined counts as live.
+     * Called by the bg thread before each round of checks.
+     */
+    private synchronized void adjustSubset() {
+        int[] order = subsetOrder;
+        if (order == null) {
+            return;
+        }
+        int live = 0;
+        int unchecked = 0;
+        int enough = 0;
+        for (int r = 0; r < subsetEnd; r++) {
+            int i = order[r];
+            if (states.live[i]) {
+                if (++live == subsetSize) {
+                    enough = r + 1;
+                }
+            } else if (states.failedChecks[i] == 0) {
+                unchecked++;
+            }
+        }
+        int end = subsetEnd;
+        if (live + unchecked < subsetSize && end < order.length) {
+            end = Math.min(order.length, end + subsetSize - live - unchecked);
+        } else if (enough > 0 && Math.max(enough, subsetSize) < end) {
+            end = Math.max(enough, subsetSize);
+        }
+        if (end != subsetEnd) {
+            logger.info("[{}] {} of the {} hosts in the subset are live. Now monitoring {} hosts.",
+                    name, live, subsetEnd, end);
+            resizeSubset(end);
+        }
+    }
+
+    /**
+     * Keeps the recent check history of every host, available from {@link HostInfo#history()}.
+     * The history answers questions such as the availability of a host over the last hour or the number
+     * of times it went up or down. Any previous history is discarded.
+     *
+     * @param checks The number of most recent checks kept per host, or 0 to keep no history.
+     *               Each check takes 17 bytes.
+     */
+    public void setHistorySize(int checks) {
+        for (HostInfo hi : hinfos) {
+            hi.history = checks > 0 ? new HostHistory(scheduler, checks) : null;
+        }
+    }
+
+    /**
+     * Configures {@link #execute(Function)}. The defaults are the 95th percentile, 3 attempts and 10%.
+     *
+     * @param hedgePercentile  A hedged attempt is sent when the first attempt takes longer than this percentile
+     *                         of the recent request latencies. Between 0 and 100.
+     * @param maxAttempts      The maximum number of attempts for a request, including hedges and retries.
+     * @param retryBudgetRatio The fraction of requests that may be hedged or retried, e.g. 0.1. This keeps
+     *                         hedges and retries from multiplying the load during an outage.
+     */
+    public synchronized void setExecutePolicy(double hedgePercentile, int maxAttempts, double retryBudgetRatio) {
+        // Synchronized so that concurrent calls cannot both replace the same executor and leak the other's threads.
+        // The previous executor lets the attempts already in flight complete.
+        RequestExecutor old = requestExecutor;
+        requestExecutor = new RequestExecutor(this, hedgePercentile, maxAttempts, retryBudgetRatio);
+        old.close();
+    }
+
+    /**
+     * Executes a request against a live host. If the request takes longer than usual, a hedged request
+     * is sent to a second live host and the first response is returned; the other request is cancelled
+     * by interrupting it. If a request throws, it is retried on another live host. Hedges and retries are
+     * limited by the settings of {@link #setExecutePolicy(double, int, double)}.
+     *
+     * @param call Non-null request to execute, called with the host to send it to. It may be called
+     *             concurrently for different hosts and should respond to interrupts.
+     * @param <T>  The type of the response.
+     * @return the response of the first successful request.
+     * @throws ExecutionException   if all attempts failed or no host is live. The cause is the last failure.
+     * @throws InterruptedException if interrupted while waiting for a response.
+     */
+    public <T> T execute(Function<HostInfo, T> call) throws ExecutionException, InterruptedException {
+        return requestExecutor.execute(call);
+    }
+
     /**
      * Returns the list of host information objects that was supplied to the constructor.
      *
@@ -120,6 +881,43 @@ public class HostMonitor {
     public void close() throws InterruptedException {
         runBgThread = false;
         checkerPool.shutdownNow();
+        requestExecutor.close();
+        saveSnapshot();
+        SharedHealthTable t = sharedTable;
+        if (t != null) {
+            following = false;
+            t.close();
+        }
+        PeerGossip g = gossip;
+        if (g != null) {
+            g.close();
+        }
+        synchronized (this) {
+            if (healthPublisher != null) {
+                healthPublisher.close();
+            }
+        }
+        EventJournal j = journal;
+        if (j != null) {
+            j.close();
+        }
+
+        // The loggers are shared by all monitors
+        for (HostInfo hi : hinfos) {
+            HostInfo.logger.forget(hi);
+            excLogger.forget(hi);
+        }
+    }
+
+    private void saveSnapshot() {
+        LivenessSnapshot s = snapshot;
+        if (s != null) {
+            try {
+                s.save(hinfos);
+            } catch (IOException e) {
+                excLogger.warnFor(null, "[{}] Failed to save snapshot {}: {}", name, s, e.getMessage());
+            }
+        }
     }
 
     /**
@@ -127,14 +925,16 @@ public class HostMonitor {
      * If this instance is created at time T, then this call may block until T + checkPeriodMs,
      * waiting for a live host.
      *
-     * @return null if there are no live hosts.
+     * @return null if there are no live hosts, or if all of them are at their concurrency limit.
+     * {@link #hasLiveHosts()} tells the two cases apart.
      */
     public HostInfo liveHost() {
         HostInfo hi = null;
         // If no live hosts are found and this instance was just created, try again
         try {
-            while ((hi = liveHost2()) == null && System.currentTimeMillis() - startTime < 2 * checkPeriodMs) {
-                Thread.sleep(checkPeriodMs);
+            while ((hi = liveHost2()) == null && !hasLiveHosts()
+                    && scheduler.currentTimeMillis() - startTime < 2 * checkPeriodMs) {
+                scheduler.sleep(checkPeriodMs);
             }
         } catch (InterruptedException e) {
             // Do nothing since an interrupted sleep should return null
@@ -143,136 +943,454 @@ public class HostMonitor {
     }
 
     private HostInfo liveHost2() throws InterruptedException {
+        HostInfo[] live = liveHosts;
+        if (live.length == 0) {
+            return null;
+        }
+
+        // Hosts in slow start are only accepted in proportion to their weight
+        SlowStart ss = slowStart;
+        long now = ss != null ? scheduler.currentTimeMillis() : 0;
+        boolean ramping = ss != null && now < slowStartUntil;
+        HostInfo fallback = null;
+        for (int i = 0; i < Math.min(live.length, MAX_SELECTION_ATTEMPTS); i++) {
+            HostInfo hi;
+            switch (loadBalancingPolicy) {
+                case FIRST_LIVE:
+                    hi = live[i];
+                    break;
+                case ROUND_ROBIN:
+                    hi = live[Math.floorMod(roundRobinIx.getAndIncrement(), live.length)];
+                    break;
+                case RANDOM:
+                    hi = live[scheduler.random().nextInt(live.length)];
+                    break;
+                case LEAST_LOADED:
+                    hi = lessLoaded(live[scheduler.random().nextInt(live.length)],
+                            live[scheduler.random().nextInt(live.length)]);
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+            if (!hi.isLive() || hi.isSaturated()) {
+                // The snapshot is stale, or the host has no capacity left
+                continue;
+            }
+            if (!ramping || scheduler.random().nextDouble() < weight(hi, now)) {
+                return hi;
+            }
+            if (fallback == null) {
+                fallback = hi;
+            }
+        }
+        if (fallback == null) {
+            // Every candidate was stale or saturated, but other hosts may have capacity left
+            int start = live.length > 1 ? scheduler.random().nextInt(live.length) : 0;
+            for (int i = 0; i < live.length; i++) {
+                HostInfo hi = live[(start + i) % live.length];
+                if (hi.isLive() && !hi.isSaturated()) {
+                    return hi;
+                }
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * Returns up to n distinct live hosts, for requests that fan out to several hosts.
+     * See {@link #liveHosts(HostInfo[])}.
+     *
+     * @param n The maximum number of hosts returned.
+     * @return non-null list of distinct live hosts, in the order of preference. It is empty if there are no
+     * live hosts.
+     */
+    public List<HostInfo> liveHosts(int n) {
+        HostInfo[] hosts = new HostInfo[n];
+        return Arrays.asList(hosts).subList(0, liveHosts(hosts));
+    }
+
+    /**
+     * Fills an array with distinct live hosts, for requests that fan out to several hosts, and returns the number
+     * of hosts filled in. The remaining entries of the array are set to null. The hosts are picked in a single
+     * pass over the live hosts, according to the load balancing policy:
+     * <ul>
+     * <li>FIRST_LIVE - the first live hosts in the order of the host list.</li>
+     * <li>ROUND_ROBIN - consecutive live hosts, continuing from where the previous call stopped.</li>
+     * <li>RANDOM - live hosts in a random order.</li>
+     * <li>LEAST_LOADED - the least loaded hosts among twice as many random live hosts, least loaded first.</li>
+     * </ul>
+     * Hosts in slow start are accepted in proportion to their weight, and only fill the remaining entries if
+     * there are not enough other hosts. Like {@link #liveHost()}, this call may block shortly after this
+     * instance is created, waiting for live hosts. Nothing is allocated.
+     *
+     * @param hosts Non-null array that receives the hosts, in the order of preference.
+     * @return the number of hosts filled in, 0 if there are no live hosts.
+     */
+    public int liveHosts(HostInfo[] hosts) {
+        int n = 0;
+        try {
+            while ((n = liveHosts2(hosts)) == 0 && hosts.length > 0 && !hasLiveHosts()
+                    && scheduler.currentTimeMillis() - startTime < 2 * checkPeriodMs) {
+                scheduler.sleep(checkPeriodMs);
+            }
+        } catch (InterruptedException e) {
+            // Do nothing since an interrupted sleep should return what was found
+        }
+        Arrays.fill(hosts, n, hosts.length, null);
+        return n;
+    }
+
+    /*
+     * Walks the live hosts in an order given by the policy: starting at an offset and advancing by a stride
+     * that is coprime with the number of live hosts, so that each host is visited once.
+     */
+    private int liveHosts2(HostInfo[] hosts) throws InterruptedException {
+        HostInfo[] live = liveHosts;
+        int k = Math.min(hosts.length, live.length);
+        if (k == 0) {
+            return 0;
+        }
+        int start = 0;
+        int stride = 1;
+        int candidates = live.length;
         switch (loadBalancingPolicy) {
             case FIRST_LIVE:
-                for (HostInfo hi : hinfos) {
-                    if (hi.isLive()) {
-                        return hi;
-                    }
-                }
-                return null;
+                break;
             case ROUND_ROBIN:
-                for (int i = 0; i < numHosts; i++) {
-                    int n = roundRobinIx.getAndIncrement();
-                    HostInfo hi = hinfos.get(n % numHosts);
-                    if (hi.isLive()) {
-                        System.out.println("returning " + hi);
-                        return hi;
-                    }
-                }
-                return null;
+                start = Math.floorMod(roundRobinIx.getAndAdd(k), live.length);
+                break;
             case RANDOM:
-                while (liveCount > 0) {
-                    HostInfo hi = hinfos.get((int) (Math.random() * numHosts));
-                    if (hi.isLive()) {
-                        return hi;
-                    }
+                start = scheduler.random().nextInt(live.length);
+                stride = randomStride(live.length);
+                break;
+            case LEAST_LOADED:
+                start = scheduler.random().nextInt(live.length);
+                stride = randomStride(live.length);
+                candidates = Math.min(2 * k, live.length);
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+
+        SlowStart ss = slowStart;
+        long now = ss != null ? scheduler.currentTimeMillis() : 0;
+        boolean ramping = ss != null && now < slowStartUntil;
+        int n = 0;
+        for (int j = 0, ix = start; j < live.length && candidates > 0; j++, ix = (ix + stride) % live.length) {
+            HostInfo hi = live[ix];
+            if (!hi.isLive() || hi.isSaturated() || ramping && scheduler.random().nextDouble() >= weight(hi, now)) {
+                continue;
+            }
+            candidates--;
+            if (loadBalancingPolicy == LoadBalancingPolicy.LEAST_LOADED) {
+                n = insertByLoad(hosts, n, k, hi);
+            } else {
+                hosts[n++] = hi;
+                if (n == k) {
+                    break;
+                }
+            }
+        }
+
+        // Fill the rest with the hosts that were passed over because of their slow start weight
+        for (int j = 0, ix = start; j < live.length && n < k && ramping; j++, ix = (ix + stride) % live.length) {
+            HostInfo hi = live[ix];
+            if (hi.isLive() && !hi.isSaturated() && !contains(hosts, n, hi)) {
+                hosts[n++] = hi;
+            }
+        }
+        return n;
+    }
+
+    /*
+     * Returns a random stride between 1 and n - 1 that is coprime with n, or 1 if n is 1 or 2.
+     */
+    private int randomStride(int n) {
+        if (n <= 2) {
+            return 1;
+        }
+        while (true) {
+            int stride = 1 + scheduler.random().nextInt(n - 1);
+            int a = n;
+            int b = stride;
+            while (b != 0) {
+                int t = a % b;
+                a = b;
+                b = t;
+            }
+            if (a == 1) {
+                return stride;
+            }
+        }
+    }
+
+    /*
+     * Inserts a host into the first n hosts, which are sorted by load, keeping at most k of them.
+     * Returns the new number of hosts.
+     */
+    private static int insertByLoad(HostInfo[] hosts, int n, int k, HostInfo hi) {
+        int i = n < k ? n++ : n;
+        while (i > 0 && loadKey(hi) < loadKey(hosts[i - 1])) {
+            if (i < k) {
+                hosts[i] = hosts[i - 1];
+            }
+            i--;
+        }
+        if (i < k) {
+            hosts[i] = hi;
+        }
+        return n;
+    }
+
+    /*
+     * Returns the load used to order hosts. A host that has not reported its load sorts last.
+     */
+    private static double loadKey(HostInfo hi) {
+        double load = hi.load();
+        return Double.isNaN(load) ? Double.POSITIVE_INFINITY : load;
+    }
+
+    private static boolean contains(HostInfo[] hosts, int n, HostInfo hi) {
+        for (int i = 0; i < n; i++) {
+            if (hosts[i] == hi) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if some hosts are live and not drained, though they may all be at their concurrency limit.
+     * When {@link #liveHost()} returns null, this tells the two cases apart: if true, the live hosts are out of
+     * capacity and the caller should shed the request; if false, all hosts are down.
+     *
+     * @return true if some hosts are live and not drained.
+     */
+    public boolean hasLiveHosts() {
+        return liveHosts.length > 0;
+    }
+
+    /*
+     * Returns the host reporting the lower load. A host that has not reported its load is not preferred.
+     */
+    private static HostInfo lessLoaded(HostInfo a, HostInfo b) {
+        double la = a.load();
+        double lb = b.load();
+        if (Double.isNaN(la) || Double.isNaN(lb)) {
+            return Double.isNaN(la) && !Double.isNaN(lb) ? b : a;
+        }
+        return lb < la ? b : a;
+    }
+
+    /*
+     * Returns the selection weight of a live host, between 0 and 1. The weight is 1 when slow start is disabled.
+     */
+    double weight(HostInfo hi, long now) {
+        SlowStart ss = slowStart;
+        long elapsed = now - hi.liveSince();
+        if (ss == null || elapsed >= ss.windowMs) {
+            return 1;
+        }
+        return Math.max(ss.minWeight, (double) elapsed / ss.windowMs);
+    }
+
+    /*
+     * Attempts to become the process that checks the hosts of the shared table.
+     */
+    private boolean acquire(SharedHealthTable table) {
+        try {
+            if (table.isWriter()) {
+                table.heartbeat();
+                return true;
+            }
+            if (table.tryAcquire()) {
+                logger.info("[{}] Took over checking hosts for other processes through {}", name, table);
+                table.heartbeat();
+                return true;
+            }
+        } catch (IOException e) {
+            excLogger.warnFor(null, "[{}] Failed to lock {}: {}", name, table, e.getMessage());
+        }
+        return false;
+    }
+
+    /*
+     * Returns a live host that is not in the excluded list, preferring the host chosen by the policy.
+     */
+    HostInfo liveHostExcluding(List<HostInfo> excluded) {
+        try {
+            for (int i = 0; i < numHosts; i++) {
+                HostInfo hi = liveHost2();
+                if (hi == null) {
+                    return null;
+                }
+                if (!excluded.contains(hi)) {
+                    return hi;
                 }
-                return null;
+            }
+        } catch (InterruptedException e) {
+            return null;
+        }
+        for (HostInfo hi : hinfos) {
+            if (hi.isLive() && !hi.isDrained() && !hi.isSaturated() && !excluded.contains(hi)) {
+                return hi;
+            }
         }
-        throw new IllegalStateException();
+        return null;
     }
 
     /*
-     * This thread is used to look for hung checker threads.
-     * If one is determined to be hung, it is interrupted.
+     * Runs the periods of the monitor: starts each round of checks, tallies the live hosts and reports changes.
+     * Hung checks are not looked for here; each check is cancelled by its deadline on the scheduler.
      */
     class BgThread extends Thread {
-        long now = System.currentTimeMillis();
+        long now = scheduler.currentTimeMillis();
         long lastInfo = now;
+        long lastSnapshot = now;
+        int numChecks = 0;
+        int lastLives = -1;
+        int lastNumListeners = 0;
+        HostInfo[] temp = new HostInfo[hinfos.size()];
+        StringBuilder sb = new StringBuilder();
 
         public void run() {
-            int numChecks = 0;
-            int lastLives = -1;
-            int lastNumListeners = 0;
-            HostInfo[] temp = new HostInfo[hinfos.size()];
-
-            StringBuilder sb = new StringBuilder();
             while (runBgThread) {
+                round();
                 try {
-                    long now = System.currentTimeMillis();
-                    int lives = 0;
-
-                    // Start another round of checks and tally the live hosts
-                    for (int i = 0; i < temp.length; i++) {
-                        HostInfo hi = hinfos.get(i);
-                        if (hi.isLive()) {
-                            lives++;
-                            temp[i] = null;
-                        } else {
-                            if (hi.isHung()) {
-                                hi.checkTask.cancel();
-                            }
-                            temp[i] = hi;
-                        }
-                        try {
-                            checkerPool.submit(hi.checkTask);
-                        } catch (RejectedExecutionException e) {
-                            // Ignore rejected exceptions if the executor service is being shut down.
-                            if (runBgThread) {
-                                throw e;
-                            } else if (showFullStackTraces) {
-                                logger.error("Failed to check " + hi, e);
-                            }
-                        }
+                    scheduler.sleep(checkPeriodMs);
+                } catch (InterruptedException e) {
+                    excLogger.error(e.getMessage(), e);
+                }
+            }
+        }
+
+        boolean isRunning() {
+            return runBgThread;
+        }
+
+        int periodMs() {
+            return checkPeriodMs;
+        }
+
+        /*
+         * Runs one period: starts another round of checks, tallies the live hosts and reports changes.
+         * Called from run() or, in a simulation, from the simulation's scheduler.
+         */
+        void round() {
+            try {
+                doRound();
+            } catch (Throwable e) {
+                excLogger.error(e.getMessage(), e);
+            }
+            numChecks++;
+        }
+
+        private void doRound() {
+            long now = scheduler.currentTimeMillis();
+            int lives = 0;
+            int active = 0;
+            adjustSubset();
+            SharedHealthTable table = sharedTable;
+            following = table != null && !acquire(table)
+                    && table.isCurrent((retries + 2) * checkPeriodMs);
+
+            // Start another round of checks and tally the live hosts
+            for (int i = 0; i < temp.length; i++) {
+                HostInfo hi = hinfos.get(i);
+                if (states.outside[i]) {
+                    // Not in this client's subset
+                    temp[i] = null;
+                    continue;
+                }
+                active++;
+                if (following) {
+                    // Another process is checking the hosts
+                    table.read(i, hi);
+                }
+                if (hi.isLive()) {
+                    lives++;
+                    temp[i] = null;
+                } else {
+                    temp[i] = hi;
+                }
+                if (following || gossip != null && gossip.skipCheck(hi)) {
+                    continue;
+                }
+                if (hi.periodMs > 0 && (hi.isCheckScheduled() || hi.checkTask.isChecking())) {
+                    // The host is checked on its own period by the timing wheel
+                    continue;
+                }
+                try {
+                    submitCheck(hi);
+                } catch (RejectedExecutionException e) {
+                    // Ignore rejected exceptions if the executor service is being shut down.
+                    if (runBgThread) {
+                        throw e;
+                    } else if (showFullStackTraces) {
+                        logger.error("Failed to check " + hi, e);
                     }
-                    // Update instance values
-                    liveCount = lives;
-
-                    now = System.currentTimeMillis();
-                    if (lives != lastLives || lastNumListeners != listeners.size() || now - lastInfo > 60000) {
-                        HostMonitorEvent event = new HostMonitorEvent();
-                        event.numLiveHosts = lives;
-
-                        // Add any non-live hosts
-                        sb.setLength(0);
-                        for (int i = 0; i < temp.length; i++) {
-                            if (temp[i] != null) {
-                                HostInfo hi = temp[i];
-                                sb.append(hi.url == null ? hi.socketAddress : hi.url);
-                                if (hi.isHung()) {
-                                    sb.append("(hung)");
-                                }
-                                sb.append(" ");
-                            }
-                        }
-                        event.hostMonitor = HostMonitor.this;
-                        if (liveCount == 0) {
-                            event.message = String.format("[%s] All %d hosts are unavailable: %s",
-                                    name, numHosts, sb.toString());
-                            if (now - startTime < checkPeriodMs) {
-                                // Avoid logging an error during start up, to avoid triggering an alert
-                                logger.info(event.message);
-                            } else {
-                                logger.error(event.message);
-                            }
-                        } else if (liveCount < numHosts) {
-                            event.message = String.format("[%s] %d out of %d hosts are unavailable: %s",
-                                    name, numHosts - liveCount, numHosts, sb.toString());
-                            logger.warn(event.message);
-                        } else {
-                            event.message = String.format("[%s] All hosts are up. (period=%dms)", name, checkPeriodMs);
-                            logger.info(event.message + ". (" + numChecks + " checks)");
-                        }
+                }
+            }
+            // Update instance values
+            liveCount = lives;
 
-                        // Notify listeners
-                        if (lives != lastLives || lastNumListeners != listeners.size()) {
-                            for (Consumer<HostMonitorEvent> listener : listeners) {
-                                listener.accept(event);
-                            }
-                        }
+            PeerGossip g = gossip;
+            if (g != null && !following) {
+                g.send();
+            }
+
+            now = scheduler.currentTimeMillis();
+            if (lives != lastLives || lastNumListeners != listeners.size() || now - lastInfo > 60000) {
+                HostMonitorEvent event = new HostMonitorEvent();
+                event.numLiveHosts = lives;
 
-                        lastLives = lives;
-                        lastNumListeners = listeners.size();
-                        lastInfo = now;
-                        numChecks = 0;
+                // Add any non-live hosts
+                sb.setLength(0);
+                for (int i = 0; i < temp.length; i++) {
+                    if (temp[i] != null) {
+                        HostInfo hi = temp[i];
+                        sb.append(hi.url == null ? hi.socketAddress : hi.url);
+                        if (hi.isHung()) {
+                            sb.append("(hung)");
+                        }
+                        sb.append(" ");
+                    }
+                }
+                event.hostMonitor = HostMonitor.this;
+                if (liveCount == 0) {
+                    event.message = String.format("[%s] All %d hosts are unavailable: %s",
+                            name, active, sb.toString());
+                    if (now - startTime < checkPeriodMs) {
+                        // Avoid logging an error during start up, to avoid triggering an alert
+                        logger.info(event.message);
+                    } else {
+                        logger.error(event.message);
                     }
+                } else if (liveCount < active) {
+                    event.message = String.format("[%s] %d out of %d hosts are unavailable: %s",
+                            name, active - liveCount, active, sb.toString());
+                    logger.warn(event.message);
+                } else {
+                    event.message = String.format("[%s] All hosts are up. (period=%dms)", name, checkPeriodMs);
+                    logger.info(event.message + ". (" + numChecks + " checks)");
+                }
 
-                    Thread.sleep(checkPeriodMs);
-                } catch (Throwable e) {
-                    excLogger.error(e.getMessage(), e);
+                // Notify listeners
+                if (lives != lastLives || lastNumListeners != listeners.size()) {
+                    for (Consumer<HostMonitorEvent> listener : listeners) {
+                        listener.accept(event);
+                    }
                 }
-                numChecks++;
+
+                lastLives = lives;
+                lastNumListeners = listeners.size();
+                lastInfo = now;
+                numChecks = 0;
+            }
+
+            if (now - lastSnapshot > SNAPSHOT_PERIOD_MS) {
+                saveSnapshot();
+                lastSnapshot = now;
             }
         }
     }
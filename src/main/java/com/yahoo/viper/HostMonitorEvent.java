@@ -10,6 +10,17 @@ public class HostMonitorEvent {
      */
     public HostMonitor hostMonitor;
 
+    /**
+     * For events about a single host, the host that went up or down. Null for events about the
+     * number of live hosts.
+     */
+    public HostInfo hostInfo;
+
+    /**
+     * For events about a single host, true if the host went up and false if it went down.
+     */
+    public boolean live;
+
     /**
      * The current number of hosts that are live.
      */
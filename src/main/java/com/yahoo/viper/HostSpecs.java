@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Creates the hosts of a monitor from host specifications, resolving the host names in parallel.
+ * The constructors of {@link HostInfo} resolve the name on the calling thread, so creating thousands of hosts
+ * one after the other, or waiting on one slow DNS server, can delay start up by tens of seconds.
+ * <p>
+ * A specification is one of:
+ * <ul>
+ * <li>port - the port on localhost, e.g. 2000</li>
+ * <li>host:port - the port on the host, e.g. xyzdb:2001</li>
+ * <li>tls:host:port - a TLS handshake with the port on the host, e.g. tls:xyzdb:443</li>
+ * <li>url - a URL that must return a status of 200, e.g. http://yahoo.com/sports</li>
+ * </ul>
+ * A host whose name does not resolve by the deadline is still returned. It is not live, and each of its checks
+ * tries to resolve the name again until it succeeds.
+ */
+public class HostSpecs {
+    final static Logger logger = LoggerFactory.getLogger(HostSpecs.class);
+
+    /**
+     * Creates the hosts listed in a file, one specification per line. Blank lines and lines starting
+     * with # are ignored. See {@link #parse(List, TlsCheck, int, long)}.
+     *
+     * @param file        Non-null file of host specifications.
+     * @param tls         The configuration of the TLS checks of tls: and https: hosts, or null for the default.
+     * @param concurrency The maximum number of names resolved at the same time.
+     * @param deadlineMs  The maximum time spent resolving the names.
+     * @return non-null list of hosts, in the order of the file.
+     * @throws IOException if the file could not be read.
+     */
+    public static List<HostInfo> parse(File file, TlsCheck tls, int concurrency, long deadlineMs) throws IOException {
+        return parse(read(file), tls, concurrency, deadlineMs);
+    }
+
+    /**
+     * Reads the host specifications listed in a file, one per line. Blank lines and lines starting
+     * with # are ignored.
+     *
+     * @param file Non-null file of host specifications.
+     * @return non-null list of specifications.
+     * @throws IOException if the file could not be read.
+     */
+    public static List<String> read(File file) throws IOException {
+        List<String> specs = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                specs.add(line);
+            }
+        }
+        return specs;
+    }
+
+    /**
+     * Creates the hosts of a list of specifications. The host names are resolved in parallel, and this
+     * method returns when all of them have been resolved or the deadline has passed.
+     *
+     * @param specs       Non-null list of host specifications.
+     * @param tls         The configuration of the TLS checks of tls: and https: hosts, or null for the default.
+     * @param concurrency The maximum number of names resolved at the same time.
+     * @param deadlineMs  The maximum time spent resolving the names.
+     * @return non-null list of hosts, in the order of the specifications.
+     * @throws IllegalArgumentException if a specification is invalid.
+     */
+    public static List<HostInfo> parse(List<String> specs, TlsCheck tls, int concurrency, long deadlineMs) {
+        Supplier<TlsCheck> t = tls != null ? () -> tls : new DefaultTls();
+        List<HostInfo> hinfos = new ArrayList<>(specs.size());
+        for (String spec : specs) {
+            hinfos.add(parse(spec, t));
+        }
+
+        // Resolve each name once
+        Map<String, Future<InetAddress>> lookups = new HashMap<>();
+        AtomicInteger threadId = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, concurrency), r -> {
+            Thread th = new Thread(r, "viper-resolver-" + threadId.incrementAndGet());
+            th.setDaemon(true);
+            return th;
+        });
+        try {
+            for (HostInfo hi : hinfos) {
+                if (hi.url == null) {
+                    lookups.computeIfAbsent(hi.name, n -> pool.submit(() -> InetAddress.getByName(n)));
+                }
+            }
+
+            long deadline = System.currentTimeMillis() + deadlineMs;
+            int unresolved = 0;
+            for (HostInfo hi : hinfos) {
+                if (hi.url == null) {
+                    InetAddress address = get(lookups.get(hi.name), deadline);
+                    if (address == null) {
+                        unresolved++;
+                        hi.socketAddress = InetSocketAddress.createUnresolved(hi.name, hi.port);
+                    } else {
+                        hi.socketAddress = new InetSocketAddress(address, hi.port);
+                    }
+                }
+            }
+            if (unresolved > 0) {
+                logger.warn("{} of {} hosts could not be resolved within {} ms. They are retried with each check.",
+                        unresolved, hinfos.size(), deadlineMs);
+            }
+        } finally {
+            // Lookups past the deadline cannot be interrupted; they end on their own
+            pool.shutdownNow();
+        }
+        return hinfos;
+    }
+
+    /*
+     * Returns the result of a lookup, or null if it failed or did not complete by the deadline.
+     */
+    private static InetAddress get(Future<InetAddress> lookup, long deadline) {
+        try {
+            return lookup.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /*
+     * Creates the default TLS configuration the first time a specification needs it, since creating it
+     * loads the trust store. Shared by the TLS hosts of one call to parse().
+     */
+    private static class DefaultTls implements Supplier<TlsCheck> {
+        private TlsCheck tls;
+
+        @Override
+        public TlsCheck get() {
+            if (tls == null) {
+                tls = new TlsCheck();
+            }
+            return tls;
+        }
+    }
+
+    /*
+     * Creates an unresolved host from a specification. The TLS configuration is only obtained for tls: and
+     * https specifications.
+     */
+    static HostInfo parse(String spec, Supplier<TlsCheck> tls) {
+        try {
+            if (spec.matches("\\d+")) {
+                return new HostInfo("localhost", Integer.parseInt(spec), null, null);
+            } else if (spec.matches("^tls:\\S+:\\d+$")) {
+                String[] ss = spec.split(":");
+                return new HostInfo(ss[1], Integer.parseInt(ss[2]), tls.get(), null);
+            } else if (spec.startsWith("https")) {
+                return new HostInfo(spec, tls.get());
+            } else if (spec.startsWith("http")) {
+                return new HostInfo(spec);
+            } else if (spec.matches("^\\S+:\\d+$")) {
+                String[] ss = spec.split(":");
+                return new HostInfo(ss[0], Integer.parseInt(ss[1]), null, null);
+            }
+        } catch (IOException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid host: " + spec, e);
+        }
+        throw new IllegalArgumentException("Invalid host: " + spec);
+    }
+}
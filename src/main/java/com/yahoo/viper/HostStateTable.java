@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.util.Arrays;
+
+/**
+ * The mutable check state of a monitor's hosts, kept in parallel primitive arrays indexed by the
+ * position of the host in the monitor's list. A {@link HostInfo} is a view of one row. Scans over all
+ * hosts, such as building the list of live hosts, walk a few contiguous arrays instead of chasing a
+ * pointer per host, and the state of a host takes 64 bytes.
+ * <p>
+ * Like the fields they replace, the elements are plain, not volatile; readers on other threads may see a
+ * slightly stale value. The liveness of a host and the state reset with it (liveSince, passedChecks,
+ * outcomes and flaps) are only written in HostMonitor.setLive() and setSlowStart(), while holding the
+ * monitor's lock. The other elements are written by the thread that has the latest information about the
+ * host: usually the thread checking it, but also the threads applying gossip, following a shared table or
+ * restoring a snapshot.
+ */
+class HostStateTable {
+    // Holds the state of hosts that have not been added to a monitor yet. It is never written.
+    final static HostStateTable UNBOUND = new HostStateTable(1);
+
+    // The time of the last check. It is set just before the check is attempted.
+    final long[] lastCheck;
+
+    // The time of the last successful check.
+    final long[] lastLive;
+
+    // The duration of the last successful check.
+    final long[] latency;
+
+    // The time the host last became live, or 0 if it is not being ramped up.
+    final long[] liveSince;
+
+    // The number of consecutive failed checks.
+    final int[] failedChecks;
+
+    // The number of consecutive successful checks since the host last went down.
+    final int[] passedChecks;
+
+    // The outcomes of the most recent checks, one bit per check with the latest in the lowest bit; 1 for success.
+    // Reset on every transition, to all successes when the host becomes live and to all failures when it goes down.
+    final long[] outcomes;
+
+    // The number of times the host went down or came back after it first became live.
+    final int[] flaps;
+
+    // The smoothed load reported by the host, or NaN if it has not reported any since it last became live.
+    final double[] load;
+
+    // True if the last check succeeded.
+    final boolean[] live;
+
+    // True if the state was restored from a snapshot and has not yet been confirmed by a check.
+    final boolean[] provisional;
+
+    // The drain flags of the host, 0 if it is not drained. Only written while holding the monitor's lock.
+    final byte[] drain;
+
+    // True if the host is outside this client's subset; it is neither checked nor selected.
+    // Only written while holding the monitor's lock.
+    final boolean[] outside;
+
+    HostStateTable(int size) {
+        lastCheck = new long[size];
+        lastLive = new long[size];
+        latency = new long[size];
+        liveSince = new long[size];
+        failedChecks = new int[size];
+        passedChecks = new int[size];
+        outcomes = new long[size];
+        flaps = new int[size];
+        load = new double[size];
+        Arrays.fill(load, Double.NaN);
+        live = new boolean[size];
+        provisional = new boolean[size];
+        drain = new byte[size];
+        outside = new boolean[size];
+    }
+
+    /**
+     * Returns the number of rows.
+     *
+     * @return the number of hosts.
+     */
+    int size() {
+        return live.length;
+    }
+
+    /**
+     * Returns true if the host can be selected by the load balancing policies.
+     *
+     * @param i The index of the host.
+     * @return true if the last check of the host succeeded and the host is not drained.
+     */
+    boolean isSelectable(int i) {
+        return live[i] && drain[i] == 0;
+    }
+
+    /**
+     * Returns the number of hosts that can be selected by the load balancing policies.
+     *
+     * @return the number of live hosts that are not drained.
+     */
+    int countSelectable() {
+        int n = 0;
+        for (int i = 0; i < live.length; i++) {
+            if (isSelectable(i)) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks a percentile of recent latencies. The most recent samples are kept in a ring buffer and the
+ * percentile is recomputed every few samples by whichever thread records the sample, so reading the
+ * percentile is a single volatile read. Nothing is allocated after construction.
+ */
+class LatencyTracker {
+    // The number of samples that the percentile is computed from
+    final static int SAMPLES = 1024;
+
+    // The percentile is recomputed after this many new samples
+    final static int RECOMPUTE_INTERVAL = 128;
+
+    // The percentile is not available until this many samples have been recorded
+    final static int MIN_SAMPLES = 32;
+
+    final private double percentile;
+    final private long[] samples = new long[SAMPLES];
+    final private long[] scratch = new long[SAMPLES];
+    final private AtomicLong count = new AtomicLong();
+    final private ReentrantLock lock = new ReentrantLock();
+    private volatile long value = Long.MAX_VALUE;
+
+    /**
+     * Creates a tracker.
+     *
+     * @param percentile The percentile to track, between 0 and 100.
+     */
+    LatencyTracker(double percentile) {
+        this.percentile = percentile;
+    }
+
+    /**
+     * Records a latency sample.
+     *
+     * @param latency The latency, in any unit.
+     */
+    void record(long latency) {
+        long n = count.getAndIncrement();
+        samples[(int) (n % SAMPLES)] = latency;
+        // Computed as soon as there are enough samples, then at every interval
+        if (((n + 1) % RECOMPUTE_INTERVAL == 0 || n + 1 == MIN_SAMPLES) && n + 1 >= MIN_SAMPLES && lock.tryLock()) {
+            try {
+                int size = (int) Math.min(n + 1, SAMPLES);
+                System.arraycopy(samples, 0, scratch, 0, size);
+                Arrays.sort(scratch, 0, size);
+                value = scratch[(int) Math.min(size - 1, Math.ceil(percentile / 100 * size) - 1)];
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the tracked percentile of the recent latencies.
+     *
+     * @return the percentile, or Long.MAX_VALUE if not enough samples have been recorded.
+     */
+    long value() {
+        return value;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Checks a host that speaks a line protocol: a request line is sent over TCP and the check succeeds when
+ * the first response line starts with the expected text. Unlike the default check, which only waits for the
+ * connection, this checks that the service behind the port is answering, e.g. memcached's version command
+ * or Redis' PING.
+ */
+public class LineProbe implements Probe {
+    // The longest response line that is read; the expected text must fit
+    final static int MAX_LINE = 1024;
+
+    final private ByteBuffer request;
+    final private byte[] expect;
+
+    /**
+     * Creates a line probe.
+     *
+     * @param request Non-null request line, without the line terminator. It is sent followed by CRLF.
+     * @param expect  Non-null text the first response line must start with. Empty to accept any response of
+     *                at least one byte.
+     */
+    public LineProbe(String request, String expect) {
+        this.request = ByteBuffer.wrap((request + "\r\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        this.expect = expect.getBytes(StandardCharsets.UTF_8);
+        if (this.expect.length > MAX_LINE) {
+            throw new IllegalArgumentException("Expected response is too long: " + expect);
+        }
+    }
+
+    /**
+     * Returns a probe that sends the memcached version command.
+     *
+     * @return non-null probe.
+     */
+    public static LineProbe memcached() {
+        return new LineProbe("version", "VERSION ");
+    }
+
+    /**
+     * Returns a probe that sends the Redis PING command.
+     *
+     * @return non-null probe.
+     */
+    public static LineProbe redis() {
+        return new LineProbe("PING", "+PONG");
+    }
+
+    @Override
+    public void check(HostInfo hinfo, InetSocketAddress address, int timeoutMs, Consumer<Closeable> abortWith)
+            throws IOException {
+        try (SocketChannel channel = SocketChannel.open()) {
+            abortWith.accept(channel);
+            channel.socket().connect(address, timeoutMs);
+            ByteBuffer req = request.duplicate();
+            while (req.hasRemaining()) {
+                channel.write(req);
+            }
+
+            // Read up to the end of the first line, or as much as is needed to compare it, and at least one byte
+            ByteBuffer response = ByteBuffer.allocate(MAX_LINE);
+            while ((response.position() == 0 || response.position() < expect.length) && !hasLine(response)) {
+                if (channel.read(response) < 0) {
+                    throw new EOFException(String.format("connection closed after %d bytes", response.position()));
+                }
+            }
+            response.flip();
+            expect(response, expect);
+        }
+    }
+
+    private static boolean hasLine(ByteBuffer buf) {
+        for (int i = 0; i < buf.position(); i++) {
+            if (buf.get(i) == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Throws if the response does not start with the expected bytes.
+     */
+    static void expect(ByteBuffer response, byte[] expect) throws IOException {
+        boolean ok = response.remaining() >= expect.length;
+        for (int i = 0; ok && i < expect.length; i++) {
+            ok = response.get(response.position() + i) == expect[i];
+        }
+        if (!ok) {
+            byte[] b = new byte[Math.min(response.remaining(), 80)];
+            response.get(b);
+            throw new IOException(String.format("unexpected response: %s",
+                    new String(b, StandardCharsets.UTF_8).trim()));
+        }
+    }
+}
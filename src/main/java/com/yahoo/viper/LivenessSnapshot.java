@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves and restores the last known state of a list of hosts. The snapshot is a small text file with
+ * one line per host, so that a restarted monitor can serve live hosts before its first checks complete.
+ */
+class LivenessSnapshot {
+    final private static String HEADER = "# viper liveness snapshot";
+    final private static String WRITTEN = "# written=";
+
+    final private File file;
+
+    LivenessSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Writes the state of the hosts to the snapshot file. The file is replaced atomically so that
+     * a crash while writing never leaves a partial snapshot.
+     *
+     * @param hinfos Non-null list of hosts to save.
+     * @throws IOException if the snapshot could not be written.
+     */
+    void save(List<HostInfo> hinfos) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            w.write(HEADER);
+            w.newLine();
+            w.write(WRITTEN + System.currentTimeMillis());
+            w.newLine();
+            for (HostInfo hi : hinfos) {
+                // A provisional state was never confirmed so it is saved as not live
+                w.write(String.format("%s\t%b\t%d\t%d\t%d", hi.key(), hi.live() && !hi.isProvisional(),
+                        hi.lastLive(), hi.latency(), hi.failedChecks()));
+                w.newLine();
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores the state saved in the snapshot file into hosts that have not been checked yet.
+     * Hosts restored as live are marked provisional until a check confirms them.
+     *
+     * @param hinfos   Non-null list of hosts to restore.
+     * @param maxAgeMs The snapshot is ignored if it was written longer ago than this.
+     * @return the number of hosts restored as live.
+     * @throws IOException if the snapshot exists but could not be read.
+     */
+    int load(List<HostInfo> hinfos, long maxAgeMs) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        long written = 0;
+        Map<String, String[]> saved = new HashMap<>();
+        try (BufferedReader r = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith(WRITTEN)) {
+                    written = Long.parseLong(line.substring(WRITTEN.length()).trim());
+                } else if (!line.startsWith("#") && !line.isEmpty()) {
+                    String[] fields = line.split("\t");
+                    if (fields.length != 5) {
+                        throw new IOException(String.format("%s: invalid line: %s", file, line));
+                    }
+                    saved.put(fields[0], fields);
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - written > maxAgeMs) {
+            return 0;
+        }
+        int lives = 0;
+        for (HostInfo hi : hinfos) {
+            String[] fields = saved.get(hi.key());
+
+            // Never override the result of a completed check
+            if (fields == null || hi.lastLive() != 0 || hi.failedChecks() != 0) {
+                continue;
+            }
+            hi.setLatency(Long.parseLong(fields[3]));
+            hi.setFailedChecks(Integer.parseInt(fields[4]));
+            if (Boolean.parseBoolean(fields[1])) {
+                // The host is considered live as of now so that it is not immediately found to be hung
+                hi.setLastLive(now);
+                hi.setProvisional(true);
+                hi.checkTask.monitor.setLive(hi, true);
+                lives++;
+            } else {
+                hi.setLastLive(Long.parseLong(fields[2]));
+            }
+        }
+        return lives;
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+}
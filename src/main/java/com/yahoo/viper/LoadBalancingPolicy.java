@@ -23,5 +23,12 @@ public enum LoadBalancingPolicy {
     /**
      * A random live host is returned.
      */
-    RANDOM
+    RANDOM,
+
+    /**
+     * Of two random live hosts, the one reporting the lower load is returned. See
+     * {@link HostMonitor#setLoadHint(String, double)}. Picking the better of two rather than the least loaded
+     * host keeps all clients from converging on the same host between checks.
+     */
+    LEAST_LOADED
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exchanges the results of host checks with peer monitors on other machines over UDP. Every check period,
+ * a compact digest of the local check results is sent to each peer (or to a multicast group). When
+ * enough monitors, including this one, have recently failed to check a host, the host is marked down
+ * without waiting for the local retries to run out. When a peer finds a host live that is down here,
+ * the host is checked right away. While peers keep reporting the same state, the local checks of a host
+ * are run every other period.
+ * <p>
+ * A digest is one or more datagrams, each with a 15 byte header followed by 17 byte entries:
+ * <pre>
+ * header: int magic, byte layout, long senderId, short numEntries
+ * entry:  long keyHash, long version (time of the check), byte flags (bit 0 live, bit 1 last check failed)
+ * </pre>
+ * Digests are not authenticated. Only datagrams from the addresses of the configured peers are accepted, but
+ * UDP source addresses can be spoofed, so the port should only be reachable from a trusted network. With a
+ * multicast group, datagrams from any member of the group are accepted.
+ */
+class PeerGossip extends Thread {
+    final private static ExceptionLogger excLogger = new ExceptionLogger(PeerGossip.class);
+
+    final static int MAGIC = 0x56495047;
+    final static byte LAYOUT = 1;
+    final static int HEADER_SIZE = 15;
+    final static int ENTRY_SIZE = 17;
+    final static int MAX_DATAGRAM = 1400;
+    final static int LIVE = 1;
+    final static int FAILED = 2;
+
+    final private HostMonitor monitor;
+    final private List<HostInfo> hinfos;
+    final private DatagramSocket socket;
+    final private List<InetSocketAddress> peers;
+
+    // The addresses digests are accepted from, or null to accept digests from any member of a multicast group
+    final private Set<InetAddress> peerAddresses;
+    final private int quorum;
+    final private long senderId = new Random().nextLong();
+
+    // keyHash -> index of the host
+    final private Map<Long, Integer> indexes = new HashMap<>();
+
+    // Per host, the latest report from each peer, keyed by sender id
+    final private Map<Long, Report>[] reports;
+
+    // The reusable send buffer; only used by the monitor's background thread
+    final private ByteBuffer out = ByteBuffer.allocate(MAX_DATAGRAM);
+
+    private volatile boolean run = true;
+
+    /*
+     * The latest state of a host as reported by one peer. Written by the receiving thread and read by the
+     * monitor's background thread, so a newer report replaces the previous one rather than updating it.
+     */
+    static class Report {
+        final long version;
+        final boolean live;
+        final boolean failed;
+        final long receivedAt;
+
+        Report(long version, boolean live, boolean failed, long receivedAt) {
+            this.version = version;
+            this.live = live;
+            this.failed = failed;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    /**
+     * Creates the gossip agent. Call start() to begin receiving digests from peers.
+     *
+     * @param monitor Non-null monitor whose hosts are shared.
+     * @param port    The local UDP port to receive digests on.
+     * @param peers   Non-null list of peers, or a single multicast group, to send digests to.
+     * @param quorum  The number of monitors that must have failed a host's check to mark it down.
+     * @throws IOException if the socket could not be created.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    PeerGossip(HostMonitor monitor, int port, List<InetSocketAddress> peers, int quorum) throws IOException {
+        super("viper-gossip-" + monitor.name);
+        setDaemon(true);
+        this.monitor = monitor;
+        this.hinfos = monitor.hostInfos();
+        this.peers = peers;
+        this.quorum = quorum;
+        this.reports = new Map[hinfos.size()];
+        for (int i = 0; i < hinfos.size(); i++) {
+            indexes.put(hinfos.get(i).keyHash(), i);
+            reports[i] = new ConcurrentHashMap<>();
+        }
+
+        if (peers.size() == 1 && peers.get(0).getAddress().isMulticastAddress()) {
+            MulticastSocket ms = new MulticastSocket(port);
+            ms.joinGroup(peers.get(0).getAddress());
+            socket = ms;
+            peerAddresses = null;
+        } else {
+            socket = new DatagramSocket(port);
+            peerAddresses = new HashSet<>();
+            for (InetSocketAddress peer : peers) {
+                peerAddresses.add(peer.getAddress());
+            }
+        }
+    }
+
+    /**
+     * Sends the local check results of all hosts to the peers. Called by the monitor's background thread.
+     */
+    void send() {
+        int count = 0;
+        startDatagram();
+        for (HostInfo hi : hinfos) {
+            if (hi.lastCheck() == 0 || hi.isProvisional()) {
+                // Only actual check results are shared
+                continue;
+            }
+            if (out.position() + ENTRY_SIZE > MAX_DATAGRAM) {
+                sendDatagram(count);
+                count = 0;
+            }
+            int flags = (hi.live() ? LIVE : 0) | (lastCheckFailed(hi) ? FAILED : 0);
+            out.putLong(hi.keyHash()).putLong(hi.lastCheck()).put((byte) flags);
+            count++;
+        }
+        if (count > 0) {
+            sendDatagram(count);
+        }
+    }
+
+    private void startDatagram() {
+        out.clear();
+        out.putInt(MAGIC).put(LAYOUT).putLong(senderId).putShort((short) 0);
+    }
+
+    private void sendDatagram(int count) {
+        out.putShort(HEADER_SIZE - 2, (short) count);
+        for (InetSocketAddress peer : peers) {
+            try {
+                socket.send(new DatagramPacket(out.array(), out.position(), peer));
+            } catch (IOException e) {
+                excLogger.infoFor(peer, "[{}] Failed to send to peer {}: {}", monitor.name, peer, e.getMessage());
+            }
+        }
+        startDatagram();
+    }
+
+    /**
+     * Returns true if the local check of the host can be skipped in this period because peers have just
+     * reported the same state. A host is never left unchecked for more than two periods.
+     *
+     * @param hi Non-null host to check.
+     * @return true if the check can be skipped.
+     */
+    boolean skipCheck(HostInfo hi) {
+        long now = monitor.scheduler.currentTimeMillis();
+        if (now - hi.lastCheck() >= 2 * monitor.checkPeriodMs) {
+            return false;
+        }
+        for (Report r : reports[hi.index].values()) {
+            if (now - r.receivedAt < monitor.checkPeriodMs && r.live == hi.live() && !r.failed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void run() {
+        byte[] data = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        while (run) {
+            try {
+                packet.setLength(data.length);
+                socket.receive(packet);
+                if (peerAddresses != null && !peerAddresses.contains(packet.getAddress())) {
+                    // Not from a configured peer
+                    continue;
+                }
+                receive(ByteBuffer.wrap(data, 0, packet.getLength()));
+            } catch (Throwable e) {
+                if (run) {
+                    excLogger.warnFor(null, "[{}] Failed to receive from peers: {}", monitor.name,
+                            e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void receive(ByteBuffer in) {
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC || in.get() != LAYOUT) {
+            return;
+        }
+        long sender = in.getLong();
+        int count = in.getShort();
+        if (sender == senderId || in.remaining() < count * ENTRY_SIZE) {
+            return;
+        }
+
+        long now = monitor.scheduler.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            Integer ix = indexes.get(in.getLong());
+            long version = in.getLong();
+            int flags = in.get();
+            if (ix == null) {
+                // The peer monitors a host that this monitor doesn't
+                continue;
+            }
+
+            Report previous = reports[ix].get(sender);
+            if (version <= (previous == null ? 0 : previous.version)) {
+                // Not checked yet, duplicated or reordered
+                continue;
+            }
+            Report r = new Report(version, (flags & LIVE) != 0, (flags & FAILED) != 0, now);
+            reports[ix].put(sender, r);
+            apply(hinfos.get(ix), reports[ix], r, now);
+        }
+    }
+
+    /*
+     * Applies the peer reports of a host to the local state.
+     */
+    private void apply(HostInfo hi, Map<Long, Report> hreports, Report latest, long now) {
+        if (hi.live()) {
+            // Count the monitors whose most recent check of the host failed, including this one
+            int failures = lastCheckFailed(hi) ? 1 : 0;
+            for (Report r : hreports.values()) {
+                if (r.failed && now - r.receivedAt < 2 * monitor.checkPeriodMs) {
+                    failures++;
+                }
+            }
+            if (failures >= quorum) {
+                hi.setFailedChecks(Math.max(hi.failedChecks(), monitor.fallChecks));
+                monitor.setLive(hi, false);
+                HostInfo.logger.infoFor(hi, "[{}] {} failed checks of {} monitors. Marking this host unavailable.",
+                        monitor.name, hi.url == null ? hi.socketAddress : hi.url, failures);
+            }
+        } else if (latest.live && !latest.failed && latest.version > hi.lastCheck()) {
+            // A peer found the host live; confirm it now rather than waiting for the next period
+            monitor.checkNow(hi);
+        }
+    }
+
+    /**
+     * Stops receiving and closes the socket.
+     */
+    void close() {
+        run = false;
+        socket.close();
+    }
+
+    /*
+     * Returns true if the most recently completed check of the host failed.
+     */
+    private static boolean lastCheckFailed(HostInfo hi) {
+        return hi.lastLive() < hi.lastCheck() && !hi.checkTask.isChecking();
+    }
+}
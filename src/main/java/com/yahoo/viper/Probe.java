@@ -0,0 +1,34 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.function.Consumer;
+
+/**
+ * Checks the health of a host with a protocol of its own, in place of the default TCP connect or HTTP GET.
+ * Configure a host with {@link HostInfo#setProbe(Probe)}. See {@link UdpProbe} and {@link LineProbe}.
+ * <p>
+ * A probe is called on the checker thread of the host and may block. It must register the channel it blocks
+ * on with the abort callback: when the check does not complete by its deadline, or is cancelled, the channel is
+ * closed, which makes the blocked call throw. A probe is shared by the checks of all the hosts configured with it,
+ * so it must be thread-safe.
+ */
+public interface Probe {
+    /**
+     * Checks a host. The check succeeds if this method returns normally.
+     *
+     * @param hinfo     Non-null host being checked.
+     * @param address   Non-null resolved address of the host.
+     * @param timeoutMs The time after which the check is aborted.
+     * @param abortWith Non-null callback to register the channel that is closed to abort the check.
+     * @throws Exception if the host is not healthy.
+     */
+    void check(HostInfo hinfo, InetSocketAddress address, int timeoutMs, Consumer<Closeable> abortWith)
+            throws Exception;
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the checks of all monitors in the process to a maximum number in flight and a maximum rate.
+ * Checks wait in a queue where hosts that are down go first, followed by the hosts that were checked
+ * least recently, as of when the check was queued. A single dispatcher thread hands each check to its monitor's checker pool once a
+ * concurrency permit and a rate token are available; the permit is released when the check completes.
+ */
+class ProbeBudget extends Thread {
+    final private static ExceptionLogger excLogger = new ExceptionLogger(ProbeBudget.class);
+
+    final private double probesPerSecond;
+    final private Semaphore permits;
+    final private PriorityBlockingQueue<Queued> queue = new PriorityBlockingQueue<>(64, (a, b) -> {
+        // Down hosts first, then the oldest check
+        if (a.live != b.live) {
+            return a.live ? 1 : -1;
+        }
+        return Long.compare(a.lastCheck, b.lastCheck);
+    });
+
+    // The number of dispatched checks that have not completed
+    final private AtomicInteger inFlight = new AtomicInteger();
+
+    // The token bucket; only used by the dispatcher thread
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    // The number of checks dispatched so far
+    final AtomicLong dispatched = new AtomicLong();
+
+    private volatile boolean run = true;
+
+    /*
+     * A queued check with the state of its host when it was queued. The queue is ordered on this state, which
+     * must not change while the check is queued.
+     */
+    private static class Queued {
+        final CheckTask task;
+        final boolean live;
+        final long lastCheck;
+
+        Queued(CheckTask task) {
+            this.task = task;
+            this.live = task.hinfo.live();
+            this.lastCheck = task.hinfo.lastCheck();
+        }
+    }
+
+    /**
+     * Creates the budget. Call start() to begin dispatching checks.
+     *
+     * @param maxConcurrent   The maximum number of checks in flight across all monitors.
+     * @param probesPerSecond The maximum rate at which checks are started across all monitors. Must be positive.
+     */
+    ProbeBudget(int maxConcurrent, double probesPerSecond) {
+        super("viper-probe-budget");
+        if (!(probesPerSecond > 0)) {
+            throw new IllegalArgumentException("probesPerSecond must be positive: " + probesPerSecond);
+        }
+        setDaemon(true);
+        this.probesPerSecond = probesPerSecond;
+        this.permits = new Semaphore(maxConcurrent);
+
+        // Allow a burst of one second's worth of checks
+        this.tokens = Math.max(1, probesPerSecond);
+    }
+
+    /**
+     * Queues a check. A check that is already queued or running is not queued again.
+     *
+     * @param task Non-null check to queue.
+     */
+    void submit(CheckTask task) {
+        if (!task.isChecking() && task.markQueued()) {
+            queue.add(new Queued(task));
+        }
+    }
+
+    /**
+     * Called by a check dispatched by this budget when it completes.
+     */
+    void release() {
+        inFlight.decrementAndGet();
+        permits.release();
+    }
+
+    /**
+     * Returns the number of checks currently in flight.
+     *
+     * @return the number of checks in flight.
+     */
+    int inFlight() {
+        // Not derived from the permits: the dispatcher holds one while it waits for the next check
+        return inFlight.get();
+    }
+
+    public void run() {
+        while (run) {
+            try {
+                permits.acquire();
+                try {
+                    acquireToken();
+                    CheckTask task = queue.take().task;
+                    task.clearQueued();
+                    inFlight.incrementAndGet();
+                    // The dispatched run holds the budget, which it releases when it completes
+                    task.monitor.submitChecker(task, this);
+                    dispatched.incrementAndGet();
+                } catch (RejectedExecutionException e) {
+                    // The task's monitor is closed
+                    inFlight.decrementAndGet();
+                    permits.release();
+                } catch (InterruptedException e) {
+                    permits.release();
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                // Closed
+            } catch (Throwable e) {
+                excLogger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /*
+     * Blocks until a token is available and takes it.
+     */
+    private void acquireToken() throws InterruptedException {
+        while (true) {
+            long now = System.nanoTime();
+            tokens = Math.min(Math.max(1, probesPerSecond), tokens + (now - lastRefill) / 1e9 * probesPerSecond);
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return;
+            }
+            Thread.sleep(Math.max(1, (long) Math.ceil((1 - tokens) / probesPerSecond * 1000)));
+        }
+    }
+
+    /**
+     * Stops dispatching.
+     *
+     * @return the checks that were still queued, in the order they would have been dispatched.
+     */
+    List<CheckTask> close() {
+        run = false;
+        interrupt();
+        List<Queued> queued = new ArrayList<>();
+        queue.drainTo(queued);
+        List<CheckTask> pending = new ArrayList<>(queued.size());
+        for (Queued q : queued) {
+            q.task.clearQueued();
+            pending.add(q.task);
+        }
+        return pending;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Executes requests against the live hosts of a monitor with hedging and failover. If the first attempt
+ * takes longer than a percentile of the recent request latencies, a hedged attempt is sent to another live
+ * host and the first response wins. If an attempt fails, the request is retried on another live host.
+ * Hedges and retries are limited by a retry budget so that they cannot multiply the load during an outage.
+ */
+class RequestExecutor {
+    final private HostMonitor monitor;
+    final private int maxAttempts;
+    final private LatencyTracker latencies;
+    final private RetryBudget budget;
+    final private ExecutorService pool;
+
+    /**
+     * Creates an executor for the hosts of a monitor.
+     *
+     * @param monitor          Non-null monitor that supplies the live hosts.
+     * @param hedgePercentile  The percentile of recent latencies after which a hedged attempt is sent.
+     * @param maxAttempts      The maximum number of attempts per request, including hedges and retries.
+     * @param retryBudgetRatio The fraction of requests that may be hedged or retried.
+     */
+    RequestExecutor(HostMonitor monitor, double hedgePercentile, int maxAttempts, double retryBudgetRatio) {
+        this.monitor = monitor;
+        this.maxAttempts = maxAttempts;
+        this.latencies = new LatencyTracker(hedgePercentile);
+        this.budget = new RetryBudget(retryBudgetRatio, 10);
+        this.pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "viper-execute-" + monitor.name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Executes the call against a live host. See {@link HostMonitor#execute(Function)}.
+     *
+     * @param call Non-null call to execute.
+     * @param <T>  The type of the result.
+     * @return the result of the first successful attempt.
+     * @throws ExecutionException   if all attempts failed or there are no live hosts.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    <T> T execute(Function<HostInfo, T> call) throws ExecutionException, InterruptedException {
+        budget.deposit();
+        CompletionService<T> cs = new ExecutorCompletionService<>(pool);
+        List<HostInfo> tried = new ArrayList<>(maxAttempts);
+        List<Attempt<T>> attempts = new ArrayList<>(maxAttempts);
+        Throwable failure = null;
+
+        HostInfo hi = monitor.liveHost();
+        if (hi == null) {
+            if (monitor.hasLiveHosts()) {
+                String msg = String.format("[%s] All live hosts are at their concurrency limit", monitor.name);
+                throw new ExecutionException(msg, new RejectedExecutionException(msg));
+            }
+            throw new ExecutionException(String.format("[%s] No live hosts", monitor.name), null);
+        }
+        try {
+            submit(cs, call, hi, tried, attempts);
+        } catch (RejectedExecutionException e) {
+            throw new ExecutionException(String.format("[%s] The executor was replaced or closed", monitor.name), e);
+        }
+        int pending = 1;
+
+        // Don't hedge until enough latencies have been recorded
+        long hedgeDelay = latencies.value();
+        boolean hedged = hedgeDelay == Long.MAX_VALUE;
+        long hedgeAt = System.nanoTime() + (hedged ? 0 : hedgeDelay);
+        try {
+            while (pending > 0) {
+                Future<T> f;
+                if (!hedged && tried.size() < maxAttempts) {
+                    f = cs.poll(Math.max(0, hedgeAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (f == null) {
+                        // The first attempt is slow; hedge on another host
+                        hedged = true;
+                        pending += retry(cs, call, tried, attempts);
+                        continue;
+                    }
+                } else {
+                    f = cs.take();
+                }
+                pending--;
+                try {
+                    return f.get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                    int sent = retry(cs, call, tried, attempts);
+                    if (sent > 0 && !hedged) {
+                        // The retry is hedged only if it is slow itself
+                        hedgeAt = System.nanoTime() + hedgeDelay;
+                    }
+                    pending += sent;
+                }
+            }
+        } finally {
+            // Cancel the attempts that lost
+            for (Attempt<T> a : attempts) {
+                a.cancel();
+            }
+        }
+        throw new ExecutionException(String.format("[%s] Request failed after %d attempts", monitor.name,
+                tried.size()), failure);
+    }
+
+    /*
+     * Sends another attempt to an untried live host, if allowed. Returns the number of attempts sent.
+     */
+    private <T> int retry(CompletionService<T> cs, Function<HostInfo, T> call, List<HostInfo> tried,
+                          List<Attempt<T>> attempts) {
+        if (tried.size() >= maxAttempts) {
+            return 0;
+        }
+        HostInfo hi = monitor.liveHostExcluding(tried);
+        if (hi == null || !budget.withdraw()) {
+            return 0;
+        }
+        try {
+            submit(cs, call, hi, tried, attempts);
+        } catch (RejectedExecutionException e) {
+            // The executor was replaced or closed while this request was running
+            return 0;
+        }
+        return 1;
+    }
+
+    private <T> void submit(CompletionService<T> cs, Function<HostInfo, T> call, HostInfo hi, List<HostInfo> tried,
+                            List<Attempt<T>> attempts) {
+        Attempt<T> attempt = new Attempt<>();
+        attempt.future = cs.submit(() -> {
+            long start = System.nanoTime();
+            hi.beginRequest();
+            boolean ok = false;
+            try {
+                T result = call.apply(hi);
+                ok = true;
+                latencies.record(System.nanoTime() - start);
+                return result;
+            } finally {
+                if (!ok && attempt.cancelled) {
+                    // The attempt lost to a hedge; its latency says nothing about the host
+                    hi.endRequest();
+                } else {
+                    hi.endRequest(System.nanoTime() - start, !ok);
+                }
+            }
+        });
+        tried.add(hi);
+        attempts.add(attempt);
+    }
+
+    /*
+     * An attempt of a request, and whether this executor cancelled it.
+     */
+    private static class Attempt<T> {
+        Future<T> future;
+        volatile boolean cancelled;
+
+        void cancel() {
+            if (!future.isDone()) {
+                // Set before the interrupt, so that the attempt sees it when the interrupt makes it fail
+                cancelled = true;
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting attempts. The attempts in flight complete and the threads then exit.
+     */
+    void close() {
+        pool.shutdown();
+    }
+}
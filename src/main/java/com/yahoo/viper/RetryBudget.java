@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits retries and hedged requests to a fraction of the requests, so that they cannot multiply the load
+ * on the hosts during an outage. Every request deposits the fraction of a token; every retry or hedge
+ * withdraws a whole token. The balance is capped so that a long quiet period does not allow a burst.
+ */
+class RetryBudget {
+    // Tokens are stored in thousandths so that fractions can be deposited atomically
+    final private static long SCALE = 1000;
+
+    final private long deposit;
+    final private long max;
+    final private AtomicLong balance;
+
+    /**
+     * Creates a budget.
+     *
+     * @param ratio     The fraction of requests that may be retried or hedged, e.g. 0.1.
+     * @param minTokens The initial balance, so that the first requests can be retried.
+     */
+    RetryBudget(double ratio, int minTokens) {
+        this.deposit = (long) (ratio * SCALE);
+        this.max = Math.max(minTokens, 100) * SCALE;
+        this.balance = new AtomicLong(minTokens * SCALE);
+    }
+
+    /**
+     * Called once for each request.
+     */
+    void deposit() {
+        long b;
+        do {
+            b = balance.get();
+            if (b >= max) {
+                return;
+            }
+        } while (!balance.compareAndSet(b, Math.min(max, b + deposit)));
+    }
+
+    /**
+     * Called before each retry or hedge.
+     *
+     * @return true if the retry or hedge is allowed.
+     */
+    boolean withdraw() {
+        long b;
+        do {
+            b = balance.get();
+            if (b < SCALE) {
+                return false;
+            }
+        } while (!balance.compareAndSet(b, b - SCALE));
+        return true;
+    }
+}
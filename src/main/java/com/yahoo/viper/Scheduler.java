@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The source of time, randomness and threads of a monitor. The system scheduler uses the wall clock,
+ * real threads and the shared timing wheel. A {@link Simulation} replaces it with virtual time so that
+ * long failure scenarios run deterministically in a fraction of the time.
+ */
+abstract class Scheduler {
+    /**
+     * A task scheduled with {@link #schedule(Runnable, long)}.
+     */
+    interface Cancellable {
+        /**
+         * Cancels the task.
+         *
+         * @return true if the task will not run.
+         */
+        boolean cancel();
+    }
+
+    /**
+     * Returns the current time in milliseconds.
+     *
+     * @return the current time.
+     */
+    abstract long currentTimeMillis();
+
+    /**
+     * Waits for the specified time.
+     *
+     * @param ms The time to wait in milliseconds.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    abstract void sleep(long ms) throws InterruptedException;
+
+    /**
+     * Runs a short task after a delay.
+     *
+     * @param task    Non-null task.
+     * @param delayMs The delay in milliseconds.
+     * @return non-null handle used to cancel the task.
+     */
+    abstract Cancellable schedule(Runnable task, long delayMs);
+
+    /**
+     * Runs a check of a host. Throws RejectedExecutionException if the monitor is closed.
+     *
+     * @param task Non-null check.
+     */
+    abstract void execute(CheckTask task);
+
+    /**
+     * Starts the background thread of a monitor.
+     *
+     * @param bgThread Non-null background thread, not yet started.
+     */
+    abstract void start(HostMonitor.BgThread bgThread);
+
+    /**
+     * Returns the random number generator to use from the calling thread.
+     *
+     * @return non-null random number generator.
+     */
+    abstract Random random();
+
+    /**
+     * Returns true if time is virtual. Process-wide facilities that run in real time, such as the probe
+     * budget, are bypassed.
+     *
+     * @return true if time is virtual.
+     */
+    boolean isVirtual() {
+        return false;
+    }
+
+    /**
+     * The scheduler used by default.
+     */
+    final static Scheduler SYSTEM = new Scheduler() {
+        @Override
+        long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        void sleep(long ms) throws InterruptedException {
+            Thread.sleep(ms);
+        }
+
+        @Override
+        Cancellable schedule(Runnable task, long delayMs) {
+            return TimingWheel.shared().schedule(task, delayMs);
+        }
+
+        @Override
+        void execute(CheckTask task) {
+            task.monitor.checkerPool.submit(task);
+        }
+
+        @Override
+        void start(HostMonitor.BgThread bgThread) {
+            bgThread.start();
+        }
+
+        @Override
+        Random random() {
+            return ThreadLocalRandom.current();
+        }
+    };
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.List;
+
+/**
+ * A memory-mapped table of host states that is shared by all the monitors on a machine that monitor
+ * the same list of hosts. The monitor that holds the lock on the file is the writer; it checks the hosts
+ * and publishes their state into the table. The other monitors are followers; they do not check the hosts
+ * but read their state from the table. The operating system releases the lock when the writer's process
+ * dies, at which point one of the followers acquires it and takes over the checking.
+ * <p>
+ * The file has a 64 byte header followed by one 64 byte slot per host:
+ * <pre>
+ * header: int magic, int layout, int numHosts, int unused, long hostsHash, long heartbeat
+ * slot:   long seq, long keyHash, long lastCheck, long lastLive, long latency, int live, int failedChecks
+ * </pre>
+ * Each slot is versioned with a seqlock: the writer makes seq odd before updating the slot and even
+ * again after, and a reader retries if seq was odd or changed while it was reading.
+ */
+class SharedHealthTable {
+    final static int MAGIC = 0x56495052;
+    final static int LAYOUT = 1;
+    final static int HEADER_SIZE = 64;
+    final static int SLOT_SIZE = 64;
+
+    // Header offsets
+    final private static int NUM_HOSTS = 8;
+    final private static int HOSTS_HASH = 16;
+    final private static int HEARTBEAT = 24;
+
+    // Slot offsets
+    final private static int SEQ = 0;
+    final private static int KEY_HASH = 8;
+    final private static int LAST_CHECK = 16;
+    final private static int LAST_LIVE = 24;
+    final private static int LATENCY = 32;
+    final private static int LIVE = 40;
+    final private static int FAILED_CHECKS = 44;
+
+    // A reader gives up on a slot that stays inconsistent for this many attempts
+    final private static int MAX_READ_ATTEMPTS = 100;
+
+    // Accesses to this field order the plain accesses to the mapped buffer. The memory model does not cover memory
+    // shared between processes, and Java 8 has no standalone fences, so the seqlock relies on HotSpot not moving
+    // plain accesses across a volatile access: a write of fence is a release, and a read is an acquire.
+    private static volatile int fence;
+
+    final private File file;
+    final private RandomAccessFile raf;
+    final private FileChannel channel;
+    final private long hostsHash;
+    final private long[] keyHashes;
+    final private int size;
+
+    private volatile MappedByteBuffer buf;
+    private volatile FileLock lock;
+
+    /**
+     * Opens or creates the shared table for the specified hosts.
+     *
+     * @param file   Non-null file that holds the table.
+     * @param hinfos Non-null list of hosts. All monitors sharing the file must use the same list.
+     * @throws IOException if the file could not be opened.
+     */
+    SharedHealthTable(File file, List<HostInfo> hinfos) throws IOException {
+        this.file = file;
+        this.keyHashes = new long[hinfos.size()];
+        long h = hinfos.size();
+        for (int i = 0; i < keyHashes.length; i++) {
+            keyHashes[i] = hinfos.get(i).keyHash();
+            h = h * 31 + keyHashes[i];
+        }
+        this.hostsHash = h;
+        this.size = HEADER_SIZE + SLOT_SIZE * hinfos.size();
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        if (channel.size() < size) {
+            raf.setLength(size);
+        }
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /**
+     * Attempts to become the writer of this table. Once acquired, the table remains writable until
+     * {@link #close()} is called.
+     *
+     * @return true if this instance is the writer.
+     * @throws IOException if the lock could not be attempted.
+     */
+    synchronized boolean tryAcquire() throws IOException {
+        if (lock != null) {
+            return true;
+        }
+        FileLock l;
+        try {
+            l = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Another monitor in this process is the writer
+            return false;
+        }
+        if (l == null) {
+            return false;
+        }
+
+        // Remap writable and initialize the header if it was written for different hosts
+        MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (b.getInt(0) != MAGIC || b.getInt(4) != LAYOUT || b.getLong(HOSTS_HASH) != hostsHash) {
+            for (int i = 0; i < size; i += 8) {
+                b.putLong(i, 0);
+            }
+            b.putInt(NUM_HOSTS, keyHashes.length);
+            b.putLong(HOSTS_HASH, hostsHash);
+            for (int i = 0; i < keyHashes.length; i++) {
+                b.putLong(HEADER_SIZE + i * SLOT_SIZE + KEY_HASH, keyHashes[i]);
+            }
+            b.putInt(4, LAYOUT);
+            fence = 0;
+            b.putInt(0, MAGIC);
+        } else {
+            // A previous writer may have died while updating a slot
+            for (int i = 0; i < keyHashes.length; i++) {
+                int off = HEADER_SIZE + i * SLOT_SIZE + SEQ;
+                if ((b.getLong(off) & 1) != 0) {
+                    b.putLong(off, b.getLong(off) + 1);
+                }
+            }
+        }
+        buf = b;
+        lock = l;
+        return true;
+    }
+
+    /**
+     * Returns true if this instance is the writer of the table.
+     *
+     * @return true if this instance holds the lock on the file.
+     */
+    boolean isWriter() {
+        return lock != null;
+    }
+
+    /**
+     * Returns true if the table was written for the same hosts and the writer has updated it recently.
+     *
+     * @param maxAgeMs The maximum time since the writer's last heartbeat.
+     * @return true if the table can be used by a follower.
+     */
+    boolean isCurrent(long maxAgeMs) {
+        MappedByteBuffer b = buf;
+        return b.getInt(0) == MAGIC && b.getInt(4) == LAYOUT && b.getLong(HOSTS_HASH) == hostsHash
+                && System.currentTimeMillis() - b.getLong(HEARTBEAT) <= maxAgeMs;
+    }
+
+    /**
+     * Marks the table as current. Called periodically by the writer.
+     */
+    void heartbeat() {
+        if (lock != null) {
+            buf.putLong(HEARTBEAT, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Publishes the state of a host. Only the writer publishes, and only the host's checker
+     * writes the host's slot.
+     *
+     * @param slot  The index of the host.
+     * @param hinfo Non-null host whose state is published.
+     */
+    void publish(int slot, HostInfo hinfo) {
+        if (lock == null) {
+            return;
+        }
+        MappedByteBuffer b = buf;
+        int off = HEADER_SIZE + slot * SLOT_SIZE;
+        long seq = b.getLong(off + SEQ);
+        b.putLong(off + SEQ, seq + 1);
+        fence = 0;
+        b.putLong(off + LAST_CHECK, hinfo.lastCheck());
+        b.putLong(off + LAST_LIVE, hinfo.lastLive());
+        b.putLong(off + LATENCY, hinfo.latency());
+        b.putInt(off + FAILED_CHECKS, hinfo.failedChecks());
+        b.putInt(off + LIVE, hinfo.live() ? 1 : 0);
+        fence = 0;
+        b.putLong(off + SEQ, seq + 2);
+    }
+
+    /**
+     * Returns the liveness of a host. The live flag and the time of the last successful check are read
+     * through the seqlock, so that they come from the same update.
+     *
+     * @param slot     The index of the host.
+     * @param maxAgeMs The host is not live if the writer last found it live longer ago than this.
+     * @return true if the writer found the host live recently, false if the slot could not be read consistently.
+     */
+    boolean isLive(int slot, long maxAgeMs) {
+        MappedByteBuffer b = buf;
+        int off = HEADER_SIZE + slot * SLOT_SIZE;
+        for (int i = 0; i < MAX_READ_ATTEMPTS; i++) {
+            long seq = b.getLong(off + SEQ);
+            int f = fence;
+            if ((seq & 1) != 0) {
+                // An update is in progress
+                Thread.yield();
+                continue;
+            }
+            boolean live = b.getInt(off + LIVE) != 0;
+            long lastLive = b.getLong(off + LAST_LIVE);
+            f = fence;
+            if (seq == b.getLong(off + SEQ)) {
+                return live && System.currentTimeMillis() - lastLive <= maxAgeMs;
+            }
+            Thread.yield();
+        }
+        return false;
+    }
+
+    /**
+     * Copies a consistent view of a host's slot into the host information object and its monitor.
+     *
+     * @param slot  The index of the host.
+     * @param hinfo Non-null host to update.
+     * @return false if the slot does not belong to the host or could not be read consistently.
+     */
+    boolean read(int slot, HostInfo hinfo) {
+        MappedByteBuffer b = buf;
+        int off = HEADER_SIZE + slot * SLOT_SIZE;
+        if (b.getLong(off + KEY_HASH) != keyHashes[slot]) {
+            return false;
+        }
+        for (int i = 0; i < MAX_READ_ATTEMPTS; i++) {
+            long seq = b.getLong(off + SEQ);
+            int f = fence;
+            if ((seq & 1) != 0) {
+                // An update is in progress
+                Thread.yield();
+                continue;
+            }
+            long lastCheck = b.getLong(off + LAST_CHECK);
+            long lastLive = b.getLong(off + LAST_LIVE);
+            long latency = b.getLong(off + LATENCY);
+            int failedChecks = b.getInt(off + FAILED_CHECKS);
+            boolean live = b.getInt(off + LIVE) != 0;
+            f = fence;
+            if (seq == b.getLong(off + SEQ)) {
+                hinfo.setLastCheck(lastCheck);
+                hinfo.setLastLive(lastLive);
+                hinfo.setLatency(latency);
+                hinfo.setFailedChecks(failedChecks);
+                hinfo.checkTask.monitor.setLive(hinfo, live);
+                return true;
+            }
+            Thread.yield();
+        }
+        return false;
+    }
+
+    /**
+     * Releases the lock, if held, and closes the file.
+     */
+    synchronized void close() {
+        try {
+            if (lock != null) {
+                lock.release();
+                lock = null;
+            }
+            channel.close();
+            raf.close();
+        } catch (IOException e) {
+            // Closing the channel releases the lock in any case
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Runs monitors in virtual time against hosts with scripted behavior. No threads or sockets are used:
+ * the background rounds, the checks and their deadlines are events in a single queue that is processed
+ * on the calling thread, in time order. Hours of checks across thousands of hosts run in seconds, and a
+ * simulation is reproducible from its seed.
+ * <p>
+ * Typical usage:
+ * <pre>
+ * Simulation sim = new Simulation(42);
+ * sim.setBehavior(Simulation.flaky(0.01, 5));
+ * sim.setBehavior(hosts.get(0), Simulation.between(60000, 120000, Simulation.hang(), Simulation.up(5)));
+ * HostMonitor monitor = sim.createMonitor("sim", hosts, LoadBalancingPolicy.ROUND_ROBIN, 1000, 2);
+ * sim.run(3600 * 1000);
+ * </pre>
+ * A simulation and its monitors must be used from a single thread. Snapshots, shared tables, gossip and
+ * the probe budget run in real time and should not be used with simulated monitors.
+ */
+public class Simulation {
+    /**
+     * The outcome of a check that is refused.
+     */
+    final public static long FAIL = -1;
+
+    /**
+     * The outcome of a check that never completes.
+     */
+    final public static long HANG = Long.MAX_VALUE;
+
+    // The virtual time at which every simulation starts. Time 0 means "never" to the monitors.
+    final static long START_TIME = 1000000000000L;
+
+    /**
+     * The scripted behavior of a simulated host.
+     */
+    public interface Behavior {
+        /**
+         * Returns the outcome of a check of the host.
+         *
+         * @param hinfo     Non-null host being checked.
+         * @param elapsedMs The virtual time since the start of the simulation.
+         * @param random    Non-null random number generator of the simulation.
+         * @return the latency of a successful check in milliseconds, {@link #FAIL} or {@link #HANG}.
+         */
+        long check(HostInfo hinfo, long elapsedMs, Random random);
+    }
+
+    final private Random random;
+    final private PriorityQueue<Event> events = new PriorityQueue<>();
+    final private Map<HostInfo, Behavior> behaviors = new IdentityHashMap<>();
+    final private VirtualScheduler scheduler = new VirtualScheduler();
+    private Behavior defaultBehavior = up(1);
+    private long now = START_TIME;
+    private long seq;
+    private long processed;
+    private boolean running;
+
+    /*
+     * A scheduled event. Events at the same time run in the order they were scheduled.
+     */
+    private class Event implements Comparable<Event>, Scheduler.Cancellable {
+        final long time;
+        final long order = seq++;
+        final Runnable task;
+        boolean cancelled;
+
+        Event(long time, Runnable task) {
+            this.time = time;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            return time != o.time ? Long.compare(time, o.time) : Long.compare(order, o.order);
+        }
+
+        @Override
+        public boolean cancel() {
+            cancelled = true;
+            return true;
+        }
+    }
+
+    /**
+     * Creates a simulation.
+     *
+     * @param seed The seed of the simulation's random number generator.
+     */
+    public Simulation(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Creates a monitor that runs in the virtual time of this simulation. The monitor's first round of
+     * checks runs when the simulation is next run. See
+     * {@link HostMonitor#HostMonitor(String, List, LoadBalancingPolicy, int, int)}.
+     *
+     * @param name                Non-null name of the monitor.
+     * @param hinfos              Non-null list of hosts to monitor.
+     * @param loadBalancingPolicy Determines which live host is returned.
+     * @param checkPeriodMs       The frequency of checking the hosts in virtual milliseconds.
+     * @param retries             The number of failed checks before a host is considered down.
+     * @return non-null monitor. Close it when done.
+     */
+    public HostMonitor createMonitor(String name, List<HostInfo> hinfos, LoadBalancingPolicy loadBalancingPolicy,
+                                     int checkPeriodMs, int retries) {
+        return createMonitor(name, hinfos, loadBalancingPolicy, checkPeriodMs, retries, new HostMonitor.Options());
+    }
+
+    /**
+     * Creates a monitor with options that runs in the virtual time of this simulation. See
+     * {@link #createMonitor(String, List, LoadBalancingPolicy, int, int)}.
+     *
+     * @param name                Non-null name of the monitor.
+     * @param hinfos              Non-null list of hosts to monitor.
+     * @param loadBalancingPolicy Determines which live host is returned.
+     * @param checkPeriodMs       The frequency of checking the hosts in virtual milliseconds.
+     * @param retries             The number of failed checks before a host is considered down.
+     * @param options             Non-null options.
+     * @return non-null monitor. Close it when done.
+     */
+    public HostMonitor createMonitor(String name, List<HostInfo> hinfos, LoadBalancingPolicy loadBalancingPolicy,
+                                     int checkPeriodMs, int retries, HostMonitor.Options options) {
+        return new HostMonitor(name, hinfos, loadBalancingPolicy, checkPeriodMs, retries, options, scheduler);
+    }
+
+    /**
+     * Sets the behavior of the hosts that have no behavior of their own. Hosts are up with a latency of 1 ms
+     * by default.
+     *
+     * @param behavior Non-null behavior.
+     */
+    public void setBehavior(Behavior behavior) {
+        defaultBehavior = behavior;
+    }
+
+    /**
+     * Sets the behavior of a host.
+     *
+     * @param hinfo    Non-null host.
+     * @param behavior Non-null behavior.
+     */
+    public void setBehavior(HostInfo hinfo, Behavior behavior) {
+        behaviors.put(hinfo, behavior);
+    }
+
+    /**
+     * Processes the events of the specified duration and advances the virtual time to its end.
+     *
+     * @param durationMs The virtual duration in milliseconds.
+     */
+    public void run(long durationMs) {
+        if (running) {
+            // Time cannot advance while an event is being processed
+            return;
+        }
+        running = true;
+        try {
+            long end = now + durationMs;
+            Event e;
+            while ((e = events.peek()) != null && e.time <= end) {
+                events.poll();
+                if (!e.cancelled) {
+                    now = e.time;
+                    processed++;
+                    e.task.run();
+                }
+            }
+            now = end;
+        } finally {
+            running = false;
+        }
+    }
+
+    /**
+     * Returns the current virtual time.
+     *
+     * @return the virtual time in milliseconds.
+     */
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    /**
+     * Returns the virtual time since the start of the simulation.
+     *
+     * @return the elapsed virtual time in milliseconds.
+     */
+    public long elapsedMs() {
+        return now - START_TIME;
+    }
+
+    /**
+     * Returns the number of events processed so far.
+     *
+     * @return the number of events.
+     */
+    public long eventCount() {
+        return processed;
+    }
+
+    /**
+     * Returns a behavior that is up with a fixed latency.
+     *
+     * @param latencyMs The latency of the checks.
+     * @return non-null behavior.
+     */
+    public static Behavior up(long latencyMs) {
+        return (hinfo, elapsedMs, random) -> latencyMs;
+    }
+
+    /**
+     * Returns a behavior that refuses all checks.
+     *
+     * @return non-null behavior.
+     */
+    public static Behavior down() {
+        return (hinfo, elapsedMs, random) -> FAIL;
+    }
+
+    /**
+     * Returns a behavior that never responds.
+     *
+     * @return non-null behavior.
+     */
+    public static Behavior hang() {
+        return (hinfo, elapsedMs, random) -> HANG;
+    }
+
+    /**
+     * Returns a behavior that refuses a random fraction of the checks.
+     *
+     * @param failureRate The probability that a check fails, between 0 and 1.
+     * @param latencyMs   The latency of the successful checks.
+     * @return non-null behavior.
+     */
+    public static Behavior flaky(double failureRate, long latencyMs) {
+        return (hinfo, elapsedMs, random) -> random.nextDouble() < failureRate ? FAIL : latencyMs;
+    }
+
+    /**
+     * Returns a behavior that switches behaviors during a window of time.
+     *
+     * @param fromMs    The start of the window, relative to the start of the simulation.
+     * @param toMs      The end of the window, relative to the start of the simulation.
+     * @param during    Non-null behavior during the window.
+     * @param otherwise Non-null behavior outside of the window.
+     * @return non-null behavior.
+     */
+    public static Behavior between(long fromMs, long toMs, Behavior during, Behavior otherwise) {
+        return (hinfo, elapsedMs, random) -> (elapsedMs >= fromMs && elapsedMs < toMs ? during : otherwise)
+                .check(hinfo, elapsedMs, random);
+    }
+
+    /*
+     * Adds an event.
+     */
+    private Event schedule(Runnable task, long delayMs) {
+        Event e = new Event(now + Math.max(0, delayMs), task);
+        events.add(e);
+        return e;
+    }
+
+    /*
+     * Runs the monitors in virtual time.
+     */
+    private class VirtualScheduler extends Scheduler {
+        @Override
+        long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        void sleep(long ms) {
+            Simulation.this.run(ms);
+        }
+
+        @Override
+        Cancellable schedule(Runnable task, long delayMs) {
+            return Simulation.this.schedule(task, delayMs);
+        }
+
+        @Override
+        void execute(CheckTask task) {
+            if (!task.startSimulated()) {
+                return;
+            }
+            HostInfo hi = task.hinfo;
+            Behavior b = behaviors.getOrDefault(hi, defaultBehavior);
+            long latency = b.check(hi, now - START_TIME, random);
+            int timeoutMs = hi.checkTimeoutMs();
+            if (latency == FAIL) {
+                Simulation.this.schedule(() -> task.endSimulated(new ConnectException("Connection refused")), 0);
+            } else if (latency > timeoutMs) {
+                Simulation.this.schedule(() -> task.endSimulated(new SocketTimeoutException(
+                        String.format("check did not complete within %d ms", timeoutMs))), timeoutMs);
+            } else {
+                Simulation.this.schedule(() -> task.endSimulated(null), latency);
+            }
+        }
+
+        @Override
+        void start(HostMonitor.BgThread bgThread) {
+            Simulation.this.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (bgThread.isRunning()) {
+                        bgThread.round();
+                        Simulation.this.schedule(this, bgThread.periodMs());
+                    }
+                }
+            }, 0);
+        }
+
+        @Override
+        Random random() {
+            return random;
+        }
+
+        @Override
+        boolean isVirtual() {
+            return true;
+        }
+    }
+}
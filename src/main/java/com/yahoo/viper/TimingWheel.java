@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel for the deadlines of checks and the checks of hosts with their own period.
+ * Scheduling and cancelling a timeout are O(1) regardless of the number of timeouts. New timeouts are
+ * handed to the wheel thread through a queue; on every tick the thread expires the timeouts of one slot.
+ * A cancelled timeout is never run and is unlinked the next time its slot is visited. Timeouts fire up to
+ * one tick late. Tasks run on the wheel thread, so they must be short.
+ */
+class TimingWheel extends Thread {
+    final private static ExceptionLogger excLogger = new ExceptionLogger(TimingWheel.class);
+
+    final static int TICK_MS = 10;
+    final static int SLOTS = 512;
+
+    private static TimingWheel shared;
+
+    final private long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MS);
+    final private long startTime = System.nanoTime();
+    final private Timeout[] slots = new Timeout[SLOTS];
+    final private ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+    // The number of ticks processed; only used by the wheel thread
+    private long tick;
+
+    /**
+     * A scheduled task.
+     */
+    static class Timeout implements Scheduler.Cancellable {
+        final private static int PENDING = 0;
+        final private static int CANCELLED = 1;
+        final private static int EXPIRED = 2;
+
+        final private Runnable task;
+        final private long deadline;
+        final private AtomicInteger state = new AtomicInteger(PENDING);
+
+        // Only used by the wheel thread
+        private long rounds;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout.
+         *
+         * @return true if the task will not run; false if it has already run or is running.
+         */
+        @Override
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED) || state.get() == CANCELLED;
+        }
+    }
+
+    private TimingWheel() {
+        super("viper-timing-wheel");
+        setDaemon(true);
+    }
+
+    /**
+     * Returns the wheel shared by all monitors in the process, starting it if necessary.
+     *
+     * @return non-null wheel.
+     */
+    static synchronized TimingWheel shared() {
+        if (shared == null) {
+            shared = new TimingWheel();
+            shared.start();
+        }
+        return shared;
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param task    Non-null task to run on the wheel thread.
+     * @param delayMs The delay before the task is run.
+     * @return non-null timeout that can be used to cancel the task.
+     */
+    Timeout schedule(Runnable task, long delayMs) {
+        Timeout t = new Timeout(task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMs));
+        added.add(t);
+        return t;
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                // Wait for the end of the current tick
+                long sleep = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+                if (sleep > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }
+                transferAdded();
+                expire((int) (tick & (SLOTS - 1)));
+                tick++;
+            } catch (Throwable e) {
+                excLogger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /*
+     * Links the newly scheduled timeouts into their slots.
+     */
+    private void transferAdded() {
+        Timeout t;
+        while ((t = added.poll()) != null) {
+            if (t.state.get() == Timeout.CANCELLED) {
+                continue;
+            }
+            long ticks = t.deadline / tickNanos;
+            t.rounds = (ticks - tick) / SLOTS;
+
+            // A deadline in the past is expired on this tick
+            int ix = (int) (Math.max(ticks, tick) & (SLOTS - 1));
+            t.next = slots[ix];
+            slots[ix] = t;
+        }
+    }
+
+    /*
+     * Runs the due timeouts of a slot and unlinks the cancelled ones.
+     */
+    private void expire(int ix) {
+        Timeout prev = null;
+        Timeout t = slots[ix];
+        while (t != null) {
+            Timeout next = t.next;
+            boolean unlink = true;
+            if (t.state.get() != Timeout.CANCELLED) {
+                if (t.rounds <= 0) {
+                    if (t.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                        try {
+                            t.task.run();
+                        } catch (Throwable e) {
+                            excLogger.error(e.getMessage(), e);
+                        }
+                    }
+                } else {
+                    t.rounds--;
+                    unlink = false;
+                }
+            }
+            if (unlink) {
+                if (prev == null) {
+                    slots[ix] = next;
+                } else {
+                    prev.next = next;
+                }
+                t.next = null;
+            } else {
+                prev = t;
+            }
+            t = next;
+        }
+    }
+}
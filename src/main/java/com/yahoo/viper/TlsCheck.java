@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+
+/**
+ * Configures how TLS hosts are checked. All the checks that use the same instance share one SSL context,
+ * and therefore one TLS session cache, so that repeated checks of a host resume the previous session
+ * rather than performing a full handshake.
+ * <p>
+ * A host created with a host, port and a TlsCheck is checked by completing a TLS handshake; no data is
+ * sent. An HTTPS URL host created with a TlsCheck is checked with an HTTP GET over the shared context.
+ * In both cases, the certificate must be issued for the host's name, and the expiry time of the host's
+ * certificate chain is recorded in the host information.
+ */
+public class TlsCheck {
+    final private static ExceptionLogger excLogger = new ExceptionLogger(TlsCheck.class);
+
+    // The number of sessions kept in the cache of a context created by this class
+    final static int SESSION_CACHE_SIZE = 10000;
+
+    final private SSLSocketFactory factory;
+    private volatile long expiryWarningMs = 14L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Creates a TLS check with its own SSL context, using the default trust store.
+     */
+    public TlsCheck() {
+        this(newContext());
+    }
+
+    /**
+     * Creates a TLS check that uses the specified SSL context. The context's client session cache
+     * is used to resume sessions.
+     *
+     * @param context Non-null initialized SSL context.
+     */
+    public TlsCheck(SSLContext context) {
+        this.factory = context.getSocketFactory();
+    }
+
+    /**
+     * Sets how long before a certificate expires a warning is logged. The default is 14 days.
+     *
+     * @param expiryWarningMs The warning period in milliseconds. Set to 0 to disable the warning.
+     * @return this object.
+     */
+    public TlsCheck setExpiryWarning(long expiryWarningMs) {
+        this.expiryWarningMs = expiryWarningMs;
+        return this;
+    }
+
+    /**
+     * Completes a TLS handshake over the connected socket. The TLS socket is returned so that the
+     * caller can close it.
+     *
+     * @param socket    Non-null connected socket. It is closed when the returned socket is closed.
+     * @param hinfo     Non-null host being checked.
+     * @param timeoutMs The maximum time to wait for the handshake.
+     * @return non-null TLS socket that completed the handshake.
+     * @throws IOException if the handshake failed.
+     */
+    SSLSocket handshake(Socket socket, HostInfo hinfo, int timeoutMs) throws IOException {
+        SSLSocket ssl = (SSLSocket) factory.createSocket(socket, hinfo.name, socket.getPort(), true);
+
+        // Verify the host name as HTTPS does, not just the chain
+        SSLParameters params = ssl.getSSLParameters();
+        params.setEndpointIdentificationAlgorithm("HTTPS");
+        ssl.setSSLParameters(params);
+        ssl.setSoTimeout(timeoutMs);
+        ssl.startHandshake();
+        certificates(hinfo, ssl.getSession().getPeerCertificates());
+        return ssl;
+    }
+
+    /**
+     * Makes the HTTPS connection use the shared SSL context.
+     *
+     * @param https Non-null unconnected HTTPS connection.
+     */
+    void configure(HttpsURLConnection https) {
+        https.setSSLSocketFactory(factory);
+    }
+
+    /**
+     * Records the certificate expiry from a connected HTTPS connection.
+     *
+     * @param https Non-null connected HTTPS connection.
+     * @param hinfo Non-null host being checked.
+     */
+    void connected(HttpsURLConnection https, HostInfo hinfo) {
+        try {
+            certificates(hinfo, https.getServerCertificates());
+        } catch (SSLPeerUnverifiedException e) {
+            // The connection was not made over TLS
+        }
+    }
+
+    private void certificates(HostInfo hinfo, Certificate[] certs) {
+        long expiry = Long.MAX_VALUE;
+        for (Certificate cert : certs) {
+            if (cert instanceof X509Certificate) {
+                expiry = Math.min(expiry, ((X509Certificate) cert).getNotAfter().getTime());
+            }
+        }
+        if (expiry == Long.MAX_VALUE) {
+            return;
+        }
+        hinfo.certificateExpiry = expiry;
+
+        long remaining = expiry - System.currentTimeMillis();
+        if (remaining < expiryWarningMs) {
+            excLogger.warnFor(hinfo, "{}: the certificate expires in {} hours",
+                    hinfo.url == null ? hinfo.socketAddress : hinfo.url, remaining / (60 * 60 * 1000));
+        }
+    }
+
+    private static SSLContext newContext() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("TLS is not available", e);
+        }
+    }
+}
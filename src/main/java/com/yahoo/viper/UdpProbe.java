@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.function.Consumer;
+
+/**
+ * Checks a host with a single UDP datagram: the request is sent and the check succeeds when a response starting
+ * with the expected bytes is received. This suits DNS and other datagram services, for which a TCP connection
+ * checks the wrong thing or is not served at all.
+ * <p>
+ * Datagrams can be lost, so a single lost request or response fails the check. Configure the monitor with
+ * retries, or with a fall count, accordingly. An ICMP port unreachable response fails the check right away.
+ */
+public class UdpProbe implements Probe {
+    final private ByteBuffer request;
+    final private byte[] expect;
+
+    /**
+     * Creates a UDP probe.
+     *
+     * @param request Non-null payload of the request datagram.
+     * @param expect  The bytes the response must start with. Empty or null to accept any response.
+     */
+    public UdpProbe(byte[] request, byte[] expect) {
+        this.request = ByteBuffer.wrap(request.clone()).asReadOnlyBuffer();
+        this.expect = expect == null ? new byte[0] : expect.clone();
+    }
+
+    @Override
+    public void check(HostInfo hinfo, InetSocketAddress address, int timeoutMs, Consumer<Closeable> abortWith)
+            throws IOException {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            abortWith.accept(channel);
+            channel.connect(address);
+            channel.write(request.duplicate());
+
+            // Blocks until a response arrives or the deadline closes the channel. Only the start of a
+            // longer response is read; the rest is discarded.
+            ByteBuffer response = ByteBuffer.allocate(Math.max(expect.length, 512));
+            channel.read(response);
+            response.flip();
+            LineProbe.expect(response, expect);
+        }
+    }
+}
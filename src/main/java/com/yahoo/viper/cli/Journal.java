@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper.cli;
+
+import com.yahoo.viper.EventJournal;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * This class implements the "journal" command line tool, which prints the records of the journals
+ * written with HostMonitor.setJournal(). See the README for usage information.
+ */
+public class Journal {
+    final private static DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss,SSS")
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * The main entry point for the journal command line tool.
+     *
+     * @param args non-null array of arguments passed to the tool.
+     * @throws Exception {@link Exception}
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || args.length % 2 == 0) {
+            usage();
+            return;
+        }
+        File dir = new File(args[0]);
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        String host = null;
+        for (int i = 1; i < args.length; i += 2) {
+            switch (args[i]) {
+                case "-from":
+                    from = parseTime(args[i + 1]);
+                    break;
+                case "-to":
+                    to = parseTime(args[i + 1]);
+                    break;
+                case "-host":
+                    host = args[i + 1];
+                    break;
+                default:
+                    usage();
+                    return;
+            }
+        }
+        if (!dir.isDirectory()) {
+            System.err.printf("Not a directory: %s\n", dir);
+            return;
+        }
+
+        String h = host;
+        EventJournal.read(dir, from, to, r -> {
+            if (h == null || r.host.contains(h)) {
+                String what;
+                if (r.type == EventJournal.TRANSITION) {
+                    what = r.live ? "is now live" : "is unavailable";
+                } else if (r.latency < 0) {
+                    what = String.format("check failed (%d failed checks)", r.failedChecks);
+                } else {
+                    what = String.format("check succeeded in %d ms", r.latency);
+                }
+                System.out.printf("%s [%s] %s %s\n", FORMAT.format(Instant.ofEpochMilli(r.time)), r.monitor,
+                        r.host, what);
+            }
+        });
+    }
+
+    /*
+     * Parses a unix time in milliseconds or a local date and time such as 2016-02-12T23:49:00.
+     */
+    private static long parseTime(String s) {
+        if (s.matches("\\d+")) {
+            return Long.parseLong(s);
+        }
+        try {
+            return LocalDateTime.parse(s).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time: " + s, e);
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: journal <dir> [-from <time>] [-to <time>] [-host <host>]");
+        System.out.println("  <time> - unix time in milliseconds or local time, e.g. 2016-02-12T23:49:00");
+        System.out.println("  <host> - only print the records of hosts whose key contains this string");
+    }
+}
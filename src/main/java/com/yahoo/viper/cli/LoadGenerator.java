@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016, Yahoo Inc.
+ * Copyrights licensed under the New BSD License.
+ * See the accompanying LICENSE file for terms.
+ */
+
+package com.yahoo.viper.cli;
+
+import com.yahoo.viper.HostInfo;
+import com.yahoo.viper.HostMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Implements the load mode of the monitor tool. Calls liveHost() from several threads for a fixed duration
+ * and periodically reports the call rate, the latency percentiles and the share of calls that each host
+ * received. When a host goes down, the time it took the monitor to notice, measured from the host's last
+ * successful check, is reported as the failover time.
+ */
+class LoadGenerator {
+    final static Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+    // The interval between reports
+    final static int REPORT_PERIOD_MS = 5000;
+
+    final private HostMonitor monitor;
+    final private List<HostInfo> hosts;
+    final private Map<HostInfo, Integer> indexes = new IdentityHashMap<>();
+    final private Stats[] stats;
+    private volatile boolean run = true;
+
+    // Unused counters after the counters of a thread, so that two threads' counters never share a cache line
+    final private static int PADDING = 16;
+
+    /*
+     * The counters of one load thread. Only that thread increments them, so no two threads update the same
+     * counter; they are atomic because the reporting thread reads them while the load runs. The host counts
+     * are followed by the count of calls that found no live host and the count of calls that returned a host
+     * that was no longer live.
+     */
+    private class Stats {
+        final Histogram latencies = new Histogram();
+        final AtomicLongArray selections = new AtomicLongArray(hosts.size() + 2 + PADDING);
+    }
+
+    LoadGenerator(HostMonitor monitor, int threads) {
+        this.monitor = monitor;
+        this.hosts = monitor.hostInfos();
+        for (int i = 0; i < hosts.size(); i++) {
+            indexes.put(hosts.get(i), i);
+        }
+        this.stats = new Stats[threads];
+        for (int i = 0; i < threads; i++) {
+            stats[i] = new Stats();
+        }
+    }
+
+    /**
+     * Runs the load and prints the reports.
+     *
+     * @param durationMs The duration of the run.
+     * @throws InterruptedException if interrupted.
+     */
+    void run(long durationMs) throws InterruptedException {
+        monitor.registerForHostEvents(event -> {
+            HostInfo hi = event.hostInfo;
+            if (event.live) {
+                logger.info("load: {} is live", Monitor.label(hi));
+            } else {
+                logger.warn("load: {} is unavailable; failover took {} ms after its last successful check",
+                        Monitor.label(hi), hi.lastLive() == 0 ? 0 : System.currentTimeMillis() - hi.lastLive());
+            }
+        });
+
+        Thread[] threads = new Thread[stats.length];
+        for (int i = 0; i < threads.length; i++) {
+            Stats s = stats[i];
+            threads[i] = new Thread(() -> generate(s), "load-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        long start = System.currentTimeMillis();
+        long end = start + durationMs;
+        long[] last = new long[0];
+        long lastTime = start;
+        Histogram lastLatencies = new Histogram();
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(REPORT_PERIOD_MS, Math.max(1, end - System.currentTimeMillis())));
+            long now = System.currentTimeMillis();
+            Histogram latencies = new Histogram();
+            long[] counts = collect(latencies);
+            report("load", now - lastTime, minus(counts, last), latencies.minus(lastLatencies));
+            last = counts;
+            lastLatencies = latencies;
+            lastTime = now;
+        }
+        run = false;
+        for (Thread t : threads) {
+            t.join();
+        }
+        Histogram latencies = new Histogram();
+        report("total", System.currentTimeMillis() - start, collect(latencies), latencies);
+    }
+
+    private void generate(Stats s) {
+        int none = hosts.size();
+        while (run) {
+            long t = System.nanoTime();
+            HostInfo hi = monitor.liveHost();
+            s.latencies.record(System.nanoTime() - t);
+            if (hi == null) {
+                s.selections.incrementAndGet(none);
+            } else {
+                s.selections.incrementAndGet(indexes.get(hi));
+                if (!hi.isLive()) {
+                    s.selections.incrementAndGet(none + 1);
+                }
+            }
+        }
+    }
+
+    /*
+     * Sums the counters of all threads.
+     */
+    private long[] collect(Histogram latencies) {
+        long[] counts = new long[hosts.size() + 2];
+        for (Stats s : stats) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += s.selections.get(i);
+            }
+            latencies.add(s.latencies);
+        }
+        return counts;
+    }
+
+    private static long[] minus(long[] a, long[] b) {
+        long[] d = a.clone();
+        for (int i = 0; i < b.length; i++) {
+            d[i] -= b[i];
+        }
+        return d;
+    }
+
+    private void report(String what, long elapsedMs, long[] counts, Histogram latencies) {
+        long calls = latencies.count();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < hosts.size(); i++) {
+            sb.append(String.format(" %s=%.1f%%", Monitor.label(hosts.get(i)),
+                    calls == 0 ? 0.0 : 100.0 * counts[i] / calls));
+        }
+        logger.info("{}: {} calls/s, latency p50={} p99={} p99.9={} max={}, no live host={}, stale={}, hosts:{}",
+                what, elapsedMs == 0 ? 0 : calls * 1000 / elapsedMs,
+                format(latencies.percentile(50)), format(latencies.percentile(99)),
+                format(latencies.percentile(99.9)), format(latencies.percentile(100)),
+                counts[hosts.size()], counts[hosts.size() + 1], sb);
+    }
+
+    private static String format(long nanos) {
+        if (nanos < 10000) {
+            return nanos + "ns";
+        } else if (nanos < 10000000) {
+            return nanos / 1000 + "us";
+        }
+        return nanos / 1000000 + "ms";
+    }
+
+    /*
+     * A log-linear histogram of latencies in nanoseconds. Each power of 2 is split into 16 buckets,
+     * so a percentile is accurate to about 6%.
+     */
+    static class Histogram {
+        final private static int SUB_BUCKETS = 16;
+        final private AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+        void record(long nanos) {
+            counts.incrementAndGet(index(Math.max(0, nanos)));
+        }
+
+        private static int index(long v) {
+            if (v < SUB_BUCKETS) {
+                return (int) v;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            return (exp - 3) * SUB_BUCKETS + (int) ((v >> (exp - 4)) & (SUB_BUCKETS - 1));
+        }
+
+        /*
+         * Returns the lowest value of a bucket.
+         */
+        private static long value(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exp = index / SUB_BUCKETS + 3;
+            return (1L << exp) | ((long) (index % SUB_BUCKETS) << (exp - 4));
+        }
+
+        void add(Histogram h) {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.addAndGet(i, h.counts.get(i));
+            }
+        }
+
+        Histogram minus(Histogram h) {
+            Histogram d = new Histogram();
+            for (int i = 0; i < counts.length(); i++) {
+                d.counts.set(i, counts.get(i) - h.counts.get(i));
+            }
+            return d;
+        }
+
+        long count() {
+            long n = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                n += counts.get(i);
+            }
+            return n;
+        }
+
+        long percentile(double p) {
+            long n = count();
+            long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return value(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
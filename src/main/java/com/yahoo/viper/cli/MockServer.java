@@ -49,6 +49,9 @@ public class MockServer extends Thread {
 
     private int port;
     private Mode mode = Mode.UP;
+
+    // If not null, reported in the X-Load header of the responses
+    private volatile String load;
     private boolean run = true;
     private ServerSocket serverSocket = null;
 
@@ -104,6 +107,15 @@ public class MockServer extends Thread {
         return mode;
     }
 
+    /**
+     * Sets the load reported in the X-Load header of the responses.
+     *
+     * @param load The load, or null to not report any.
+     */
+    public void setLoad(String load) {
+        this.load = load;
+    }
+
     private Socket accept() throws IOException {
         if (serverSocket == null) {
             serverSocket = new ServerSocket(port);
@@ -128,6 +140,10 @@ public class MockServer extends Thread {
 
                         out.print("HTTP/1.1 200 \r\n");
                         out.print("Content-Type: text/plain\r\n");
+                        String l = load;
+                        if (l != null) {
+                            out.print("X-Load: " + l + "\r\n");
+                        }
                         out.print("Connection: close\r\n");
                         out.print("\r\n");
                         break;
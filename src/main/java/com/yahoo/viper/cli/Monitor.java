@@ -8,10 +8,12 @@ package com.yahoo.viper.cli;
 
 import com.yahoo.viper.HostInfo;
 import com.yahoo.viper.HostMonitor;
+import com.yahoo.viper.HostSpecs;
 import com.yahoo.viper.LoadBalancingPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -28,28 +30,43 @@ public class Monitor {
      * @throws Exception {@link Exception}
      */
     public static void main(String[] args) throws Exception {
-        if (args.length == 0) {
-            System.out.println("Usage: monitor <host:port|url> [<host:port|url>]*");
+        // In load mode, liveHost() is called from many threads for a fixed duration
+        int loadThreads = 0;
+        long loadSeconds = 0;
+        int first = 0;
+        if (args.length >= 3 && args[0].equals("-load") && args[1].matches("\\d+") && args[2].matches("\\d+")) {
+            loadThreads = Integer.parseInt(args[1]);
+            loadSeconds = Long.parseLong(args[2]);
+            first = 3;
+        }
+        if (args.length == first) {
+            System.out.println("Usage: monitor [-load <threads> <seconds>] "
+                    + "<host:port|tls:host:port|url|@file> [<host:port|tls:host:port|url|@file>]*");
             return;
         }
 
-        List<HostInfo> hosts = new ArrayList<>();
-        for (int i = 0; i < args.length; i++) {
-            HostInfo hi;
-            if (args[i].matches("\\d+")) {
-                hi = new HostInfo("localhost", Integer.parseInt(args[i]));
-            } else if (args[i].startsWith("http")) {
-                hi = new HostInfo(args[i]);
-            } else if (args[i].matches("^\\S+:\\d+$")) {
-                String[] ss = args[i].split(":");
-                hi = new HostInfo(ss[0], Integer.parseInt(ss[1]));
+        // Host names are resolved in parallel; a name that does not resolve is retried with each check
+        List<String> specs = new ArrayList<>();
+        for (int i = first; i < args.length; i++) {
+            if (args[i].startsWith("@")) {
+                specs.addAll(HostSpecs.read(new File(args[i].substring(1))));
             } else {
-                System.err.printf("Invalid host: %s\n", args[i]);
-                return;
+                specs.add(args[i]);
             }
-            hosts.add(hi);
+        }
+        List<HostInfo> hosts;
+        try {
+            hosts = HostSpecs.parse(specs, null, 64, 10000);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
         }
         HostMonitor monitor = new HostMonitor("MonitorCmd", hosts, LoadBalancingPolicy.ROUND_ROBIN, 500, 0);
+        if (loadThreads > 0) {
+            new LoadGenerator(monitor, loadThreads).run(loadSeconds * 1000);
+            monitor.close();
+            return;
+        }
 
         // Register listener
         monitor.registerForEvents(event -> {
@@ -75,7 +92,7 @@ public class Monitor {
         }
     }
 
-    private static String label(HostInfo hi) {
+    static String label(HostInfo hi) {
         if (hi.url != null) {
             return hi.url.toString();
         }
@@ -50,6 +50,12 @@ public class Server {
                 servers.put(port, ms);
             }
 
+            // Set the reported load, keeping the mode
+            if (args.length > 2 && args[1].equals("load")) {
+                ms.setLoad(args[2].equals("none") ? null : args[2]);
+                continue;
+            }
+
             // Set the mode if specified
             MockServer.Mode mode = MockServer.Mode.UP;
             if (args.length > 1) {
@@ -81,5 +87,6 @@ public class Server {
         System.out.println("  <port> down - stop handling requests to the port");
         System.out.println("  <port> hang - hang requests to the port");
         System.out.println("  <port> error - fail requests to the port");
+        System.out.println("  <port> load <load|none> - report the load in the X-Load header of responses");
     }
 }
@@ -7,16 +7,51 @@
 package com.yahoo.viper;
 
 import com.yahoo.viper.cli.MockServer;
+import org.slf4j.Logger;
 import org.testng.Assert;
 import org.testng.annotations.AfterTest;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.testng.Assert.assertTrue;
 
@@ -52,13 +87,25 @@ public class HostMonitorTest {
     }
 
     public HostMonitor createMonitor(LoadBalancingPolicy policy, int checkPeriodMs) throws Exception {
+        return createMonitor(policy, checkPeriodMs, new HostMonitor.Options());
+    }
+
+    public HostMonitor createMonitor(LoadBalancingPolicy policy, int checkPeriodMs, HostMonitor.Options options)
+            throws Exception {
         List<HostInfo> hinfos = Arrays.asList(
                 new HostInfo("localhost", 5000),
                 new HostInfo("localhost", 5001),
                 new HostInfo("http://localhost:5002"));
 
-        HostMonitor monitor = new HostMonitor(Thread.currentThread().getStackTrace()[2].getMethodName(),
-                hinfos, policy, checkPeriodMs, 0);
+        // Name the monitor after the calling test
+        String name = "monitor";
+        for (StackTraceElement e : Thread.currentThread().getStackTrace()) {
+            if (e.getMethodName().startsWith("test")) {
+                name = e.getMethodName();
+                break;
+            }
+        }
+        HostMonitor monitor = new HostMonitor(name, hinfos, policy, checkPeriodMs, 0, options);
 
         int liveCount = 0;
         for (MockServer s : mockServers) {
@@ -210,4 +257,1171 @@ public class HostMonitorTest {
             watcher.close();
         }
     }
+
+    /**
+     * Messages are condensed per host and template, and a summary never mixes the values of two calls.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testExceptionLogger() throws Exception {
+        List<String> logged = new CopyOnWriteArrayList<>();
+        ExceptionLogger excLogger = new ExceptionLogger((Logger) Proxy.newProxyInstance(
+                Logger.class.getClassLoader(), new Class<?>[]{Logger.class}, (proxy, method, args) -> {
+                    if (method.getName().startsWith("is")) {
+                        return true;
+                    }
+                    Throwable e = args.length > 1 && args[1] instanceof Throwable ? (Throwable) args[1] : null;
+                    logged.add(args[0] + (e == null ? "" : " / " + e.getMessage()));
+                    return null;
+                }));
+
+        for (int i = 0; i < 10; i++) {
+            excLogger.infoFor("a", "[{}] failed", i);
+        }
+        excLogger.infoFor("b", "[{}] failed", 0);
+        Assert.assertEquals(logged, Arrays.asList("[0] failed", "[0] failed"));
+
+        // Another message of the same host flushes the suppressed ones
+        excLogger.infoFor("a", "[{}] hung", 0);
+        Assert.assertEquals(logged.subList(2, logged.size()),
+                Arrays.asList("[9] failed [logged 9 times]", "[0] hung"));
+
+        // Concurrent calls are counted exactly, and each summary pairs the arguments with their exception
+        logged.clear();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread th = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    long v = Thread.currentThread().getId() * 10000 + i;
+                    excLogger.warnFor("c", "value {}", v, new Exception(Long.toString(v)));
+                }
+            });
+            th.start();
+            threads.add(th);
+        }
+        for (Thread th : threads) {
+            th.join();
+        }
+        excLogger.warnFor("c", "done");
+        int total = 0;
+        for (String line : logged) {
+            if (line.startsWith("value ")) {
+                String[] parts = line.split(" ");
+                Assert.assertEquals(parts[parts.length - 1], parts[1], line);
+                total += line.contains("[logged") ? Integer.parseInt(parts[3]) : 1;
+            }
+        }
+        Assert.assertEquals(total, 8000);
+    }
+
+    /**
+     * Save a snapshot and restore it into a new monitor whose first host hangs. The first host is served
+     * provisionally from the snapshot while its check has not completed.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWarmStart() throws Exception {
+        File file = File.createTempFile("viper", ".snapshot");
+        file.deleteOnExit();
+
+        HostMonitor watcher = createMonitor(LoadBalancingPolicy.FIRST_LIVE, checkPeriodMs,
+                new HostMonitor.Options().setSnapshot(file, 60000));
+        watcher.close();
+
+        mockServers[0].setMode(MockServer.Mode.HANG);
+        List<HostInfo> hinfos = Arrays.asList(new HostInfo("localhost", 5000), new HostInfo("localhost", 5001));
+        watcher = new HostMonitor("testWarmStart", hinfos, LoadBalancingPolicy.FIRST_LIVE, 1000, 0,
+                new HostMonitor.Options().setSnapshot(file, 60000));
+        try {
+            // The first round of checks has not completed, so the host can only come from the snapshot
+            HostInfo hi = watcher.liveHost();
+            Assert.assertEquals(hi.socketAddress.getPort(), 5000);
+            Assert.assertTrue(hi.isProvisional());
+        } finally {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Two monitors share a table. The second one serves live hosts from the table without checking,
+     * and takes over the checking when the first one is closed.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSharedTable() throws Exception {
+        File file = File.createTempFile("viper", ".table");
+        file.deleteOnExit();
+
+        HostMonitor writer = createMonitor(LoadBalancingPolicy.FIRST_LIVE, checkPeriodMs);
+        HostMonitor follower = null;
+        try {
+            writer.setSharedTable(file);
+            List<HostInfo> hinfos = Arrays.asList(
+                    new HostInfo("localhost", 5000),
+                    new HostInfo("localhost", 5001),
+                    new HostInfo("http://localhost:5002"));
+            follower = new HostMonitor("testSharedTable", hinfos, LoadBalancingPolicy.FIRST_LIVE, checkPeriodMs, 0);
+            follower.setSharedTable(file);
+            Thread.sleep(checkPeriodMs * 4);
+            Assert.assertTrue(follower.following);
+            Assert.assertEquals(follower.liveHost().socketAddress.getPort(), 5000);
+
+            // The follower notices that the first host went down through the table
+            mockServers[0].setMode(MockServer.Mode.DOWN);
+            Thread.sleep(checkPeriodMs * 10);
+            Assert.assertEquals(follower.liveHost().socketAddress.getPort(), 5001);
+
+            // The follower takes over
+            writer.close();
+            Thread.sleep(checkPeriodMs * 4);
+            Assert.assertFalse(follower.following);
+            Assert.assertTrue(follower.sharedTable.isWriter());
+            Assert.assertEquals(follower.liveHost().socketAddress.getPort(), 5001);
+        } finally {
+            writer.close();
+            if (follower != null) {
+                follower.close();
+            }
+        }
+    }
+
+    /**
+     * Three monitors on loopback exchange check results. With a large number of retries, the first host
+     * would stay live for a long time, but the failures reported by the peers mark it down quickly.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testGossip() throws Exception {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            peers.add(new InetSocketAddress("localhost", 5100 + i));
+        }
+        List<HostMonitor> monitors = new ArrayList<>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                List<HostInfo> hinfos = Arrays.asList(new HostInfo("localhost", 5000), new HostInfo("localhost", 5001));
+                HostMonitor monitor = new HostMonitor("testGossip" + i, hinfos, LoadBalancingPolicy.FIRST_LIVE,
+                        checkPeriodMs, 1000);
+                monitor.setGossip(5100 + i, peers, 2);
+                monitors.add(monitor);
+            }
+
+            // The mock server may still be rebinding its port when the first checks run
+            Thread.sleep(checkPeriodMs * 4);
+            for (HostMonitor monitor : monitors) {
+                Assert.assertEquals(monitor.liveHost().socketAddress.getPort(), 5000);
+            }
+
+            mockServers[0].setMode(MockServer.Mode.DOWN);
+            Thread.sleep(checkPeriodMs * 10);
+            for (HostMonitor monitor : monitors) {
+                Assert.assertEquals(monitor.liveHost().socketAddress.getPort(), 5001);
+            }
+        } finally {
+            for (HostMonitor monitor : monitors) {
+                monitor.close();
+            }
+        }
+    }
+
+    /**
+     * A TLS host is checked with a handshake only, repeated checks resume the first session, and the
+     * expiry of the server's certificate is recorded.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTls() throws Exception {
+        KeyStore keys = KeyStore.getInstance("JKS");
+        try (InputStream in = getClass().getResourceAsStream("/tls-test.jks")) {
+            keys.load(in, "changeit".toCharArray());
+        }
+        X509Certificate cert = (X509Certificate) keys.getCertificate("viper");
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keys, "changeit".toCharArray());
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keys);
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, tmf.getTrustManagers(), null);
+
+        // A TLS 1.2 server, whose resumed sessions keep their id, that records the sessions and any data it receives
+        SSLServerSocket server = (SSLServerSocket) serverContext.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        server.setEnabledProtocols(new String[]{"TLSv1.2"});
+        List<String> sessions = new CopyOnWriteArrayList<>();
+        AtomicInteger received = new AtomicInteger();
+        Thread tlsServer = new Thread(() -> {
+            while (!server.isClosed()) {
+                try (SSLSocket s = (SSLSocket) server.accept()) {
+                    s.setSoTimeout(1000);
+                    s.startHandshake();
+                    sessions.add(Arrays.toString(s.getSession().getId()));
+                    while (s.getInputStream().read() >= 0) {
+                        received.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    // Closed, or the client went away
+                }
+            }
+        });
+        tlsServer.start();
+
+        HostInfo hi = new HostInfo("localhost", server.getLocalPort(),
+                new TlsCheck(clientContext).setExpiryWarning(0));
+        // A cold TLS handshake takes longer than the usual check period
+        HostMonitor watcher = new HostMonitor("testTls", Arrays.asList(hi), LoadBalancingPolicy.FIRST_LIVE, 1000, 0);
+        try {
+            Thread.sleep(4500);
+            Assert.assertTrue(hi.isLive());
+            Assert.assertTrue(sessions.size() >= 3, "handshakes: " + sessions.size());
+            Assert.assertEquals(new HashSet<>(sessions).size(), 1, "every check after the first resumes its session");
+            Assert.assertEquals(received.get(), 0, "a handshake-only check sends no data");
+            Assert.assertEquals(hi.certificateExpiry(), cert.getNotAfter().getTime());
+
+            // The certificate is for localhost, not for its address
+            HostInfo other = new HostInfo("127.0.0.1", server.getLocalPort());
+            try (Socket socket = new Socket()) {
+                socket.connect(other.socketAddress(), 1000);
+                new TlsCheck(clientContext).handshake(socket, other, 1000).close();
+                Assert.fail("a certificate for another host is accepted");
+            } catch (SSLHandshakeException e) {
+                // Expected
+            }
+        } finally {
+            watcher.close();
+            server.close();
+            tlsServer.join();
+        }
+    }
+
+    /**
+     * The pool is warmed while a host is live and drained as soon as it goes down.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConnectionPool() throws Exception {
+        HostMonitor watcher = createMonitor(LoadBalancingPolicy.FIRST_LIVE, checkPeriodMs);
+        ConnectionPool<SocketChannel> pool = new ConnectionPool<>(watcher, ConnectionPool.socketChannels(1000), 2, 4);
+        try {
+            HostInfo hi = watcher.liveHost();
+            Thread.sleep(checkPeriodMs * 2);
+            Assert.assertEquals(pool.idleCount(hi), 2);
+
+            SocketChannel ch = pool.acquire(hi);
+            Assert.assertTrue(ch.isConnected());
+            pool.release(hi, ch);
+
+            mockServers[0].setMode(MockServer.Mode.DOWN);
+            Thread.sleep(checkPeriodMs * 4);
+            Assert.assertEquals(pool.idleCount(hi), 0);
+            Assert.assertNull(pool.acquire(hi));
+        } finally {
+            pool.close();
+            watcher.close();
+        }
+
+        // A connection closed by the peer is not reused
+        ConnectionPool.Connector<SocketChannel> connector = ConnectionPool.socketChannels(1000);
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            HostInfo hi = new HostInfo("localhost", server.socket().getLocalPort());
+            SocketChannel ch = connector.connect(hi);
+            SocketChannel peer = server.accept();
+            Assert.assertTrue(connector.isOpen(ch));
+            peer.close();
+            Thread.sleep(100);
+            Assert.assertFalse(connector.isOpen(ch));
+            connector.close(ch);
+
+            ConnectionPool.Connector<Socket> keepAlive = ConnectionPool.keepAliveSockets(1000);
+            Socket socket = keepAlive.connect(hi);
+            peer = server.accept();
+            Assert.assertTrue(keepAlive.isOpen(socket));
+            peer.close();
+            Thread.sleep(100);
+            Assert.assertFalse(keepAlive.isOpen(socket));
+            keepAlive.close(socket);
+        }
+    }
+
+    /**
+     * A failed request is retried on another host and a slow request is hedged on another host.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testExecute() throws Exception {
+        HostMonitor watcher = createMonitor(LoadBalancingPolicy.FIRST_LIVE, checkPeriodMs);
+        try {
+            // Failover
+            int port = watcher.execute(hi -> {
+                if (hi.port == 5000) {
+                    throw new IllegalStateException("failed");
+                }
+                return hi.port;
+            });
+            Assert.assertEquals(port, 5001);
+
+            // Learn the usual latency
+            for (int i = 0; i < LatencyTracker.RECOMPUTE_INTERVAL; i++) {
+                watcher.execute(hi -> hi.port);
+            }
+
+            // Hedge
+            long start = System.currentTimeMillis();
+            port = watcher.execute(hi -> {
+                if (hi.port == 5000) {
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException e) {
+                        return -1;
+                    }
+                }
+                return hi.port;
+            });
+            Assert.assertEquals(port, 5001);
+            Assert.assertTrue(System.currentTimeMillis() - start < 2500);
+        } finally {
+            watcher.close();
+        }
+    }
+
+    /**
+     * A recovered host receives only a small share of traffic at the start of its slow start window, and
+     * its full share once slow start is disabled.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSlowStart() throws Exception {
+        mockServers[0].setMode(MockServer.Mode.DOWN);
+        HostMonitor watcher = createMonitor(LoadBalancingPolicy.RANDOM, checkPeriodMs);
+        try {
+            watcher.setSlowStart(60000, 0.01);
+            Thread.sleep(checkPeriodMs * 2);
+
+            // Recover first host
+            mockServers[0].setMode(MockServer.Mode.UP);
+            Thread.sleep(checkPeriodMs * 10);
+            Assert.assertTrue(watcher.hostInfos().get(0).isLive());
+
+            int count = 0;
+            for (int i = 0; i < 1000; i++) {
+                if (watcher.liveHost().port == 5000) {
+                    count++;
+                }
+            }
+            Assert.assertTrue(count < 100, "The recovered host received " + count + " of 1000 requests");
+
+            // Disabling slow start mid-ramp gives the host its full share right away
+            watcher.setSlowStart(0, 0);
+            count = 0;
+            for (int i = 0; i < 1000; i++) {
+                if (watcher.liveHost().port == 5000) {
+                    count++;
+                }
+            }
+            Assert.assertTrue(count > 200, "The recovered host received " + count + " of 1000 requests");
+        } finally {
+            watcher.close();
+        }
+    }
+
+    /**
+     * A host at its concurrency limit is skipped, and execute() fails fast when all hosts are at their limit.
+     * The limit grows while requests are fast and shrinks when they slow down.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        HostMonitor watcher = createMonitor(LoadBalancingPolicy.ROUND_ROBIN, checkPeriodMs);
+        try {
+            Thread.sleep(checkPeriodMs * 2);
+            watcher.setExecutePolicy(95, 1, 0);
+            watcher.setConcurrencyLimit(1, 1, 1);
+            List<HostInfo> hinfos = watcher.hostInfos();
+            hinfos.get(0).beginRequest();
+            hinfos.get(1).beginRequest();
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(watcher.liveHost(), hinfos.get(2));
+            }
+            hinfos.get(2).beginRequest();
+            Assert.assertNull(watcher.liveHost());
+            Assert.assertTrue(watcher.hasLiveHosts());
+            try {
+                watcher.execute(hi -> hi.port);
+                Assert.fail("execute() should have been rejected");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException, e.toString());
+            }
+            hinfos.get(0).endRequest();
+            Assert.assertEquals(watcher.liveHost(), hinfos.get(0));
+            hinfos.get(1).endRequest();
+            hinfos.get(2).endRequest();
+
+            // Fast requests with many in flight raise the limit; slow ones lower it
+            watcher.setConcurrencyLimit(10, 1, 100);
+            HostInfo hi = hinfos.get(0);
+            for (int i = 0; i < 10; i++) {
+                hi.beginRequest();
+            }
+            for (int i = 0; i < 200; i++) {
+                hi.endRequest(1000000, false);
+                hi.beginRequest();
+            }
+            int limit = hi.concurrencyLimit();
+            Assert.assertTrue(limit > 10, "limit=" + limit);
+            for (int i = 0; i < 10; i++) {
+                Thread.sleep(20);
+                hi.endRequest(20000000, false);
+                hi.beginRequest();
+            }
+            Assert.assertTrue(hi.concurrencyLimit() < limit * 0.6, "limit=" + hi.concurrencyLimit());
+            for (int i = 0; i < 10; i++) {
+                hi.endRequest();
+            }
+        } finally {
+            watcher.close();
+        }
+
+        // A host with capacity left is found even when all the candidates tried by the policy are saturated
+        List<HostInfo> hinfos = new ArrayList<>();
+        for (int i = 0; i < HostMonitor.MAX_SELECTION_ATTEMPTS + 4; i++) {
+            hinfos.add(new HostInfo("10.3.0." + i, 80));
+        }
+        Simulation sim = new Simulation(13);
+        HostMonitor monitor = sim.createMonitor("testConcurrencyLimit2", hinfos, LoadBalancingPolicy.FIRST_LIVE,
+                1000, 0);
+        try {
+            sim.run(2000);
+            monitor.setConcurrencyLimit(1, 1, 1);
+            for (int i = 0; i < hinfos.size() - 1; i++) {
+                hinfos.get(i).beginRequest();
+            }
+            Assert.assertSame(monitor.liveHost(), hinfos.get(hinfos.size() - 1));
+        } finally {
+            monitor.close();
+        }
+    }
+
+    /**
+     * With a process-wide budget, the checks of a monitor are started no faster than the budget's rate, and
+     * the checks of down hosts and of the least recently checked hosts are started first.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testProbeBudget() throws Exception {
+        HostMonitor.setProbeBudget(1, 10);
+        long start = System.currentTimeMillis();
+        HostMonitor watcher = createMonitor(LoadBalancingPolicy.FIRST_LIVE, checkPeriodMs);
+        try {
+            Thread.sleep(1000);
+            long elapsedMs = System.currentTimeMillis() - start;
+            long dispatched = HostMonitor.probeBudget.dispatched.get();
+            Assert.assertTrue(dispatched <= 10 + 10 * elapsedMs / 1000 + 1, dispatched + " checks in " + elapsedMs + "ms");
+            Assert.assertEquals(watcher.liveHost().socketAddress.getPort(), 5000);
+        } finally {
+            watcher.close();
+            HostMonitor.setProbeBudget(0, 0);
+        }
+
+        // Queued checks go to down hosts first, then to the least recently checked hosts, as of when they were queued.
+        // The hosts are checked once and then not again during the test.
+        List<HostInfo> hinfos = Arrays.asList(
+                new HostInfo("localhost", 5000),
+                new HostInfo("localhost", 5001),
+                new HostInfo("http://localhost:5002"));
+        for (HostInfo hi : hinfos) {
+            hi.setCheckPeriod(60000);
+        }
+        watcher = new HostMonitor("testProbeBudget", hinfos, LoadBalancingPolicy.FIRST_LIVE, 50, 0);
+        ProbeBudget budget = new ProbeBudget(1, 10);
+        try {
+            start = System.currentTimeMillis();
+            for (HostInfo hi : hinfos) {
+                while (!hi.isLive() || hi.checkTask.isChecking()) {
+                    Assert.assertTrue(System.currentTimeMillis() - start < 5000, hi + " did not become live");
+                    Thread.sleep(10);
+                }
+            }
+            hinfos.get(0).setLastCheck(100);
+            hinfos.get(1).setLastCheck(50);
+            hinfos.get(2).setLastCheck(200);
+            watcher.setLive(hinfos.get(2), false);
+            for (HostInfo hi : hinfos) {
+                budget.submit(hi.checkTask);
+            }
+            hinfos.get(0).setLastCheck(0);
+            watcher.setLive(hinfos.get(2), true);
+            Assert.assertEquals(budget.inFlight(), 0);
+
+            List<CheckTask> order = budget.close();
+            Assert.assertEquals(order.size(), 3);
+            Assert.assertSame(order.get(0).hinfo, hinfos.get(2));
+            Assert.assertSame(order.get(1).hinfo, hinfos.get(1));
+            Assert.assertSame(order.get(2).hinfo, hinfos.get(0));
+        } finally {
+            watcher.close();
+        }
+
+        try {
+            HostMonitor.setProbeBudget(1, 0);
+            Assert.fail("a budget without a rate is rejected");
+        } catch (IllegalArgumentException e) {
+            Assert.assertNull(HostMonitor.probeBudget);
+        }
+    }
+
+    /**
+     * A host with its own period and timeout is checked independently of the monitor's period, and its
+     * hung checks are aborted at their deadline rather than blocking until the next period.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCheckDeadline() throws Exception {
+        mockServers[0].setMode(MockServer.Mode.HANG);
+        HostInfo hi = new HostInfo("localhost", 5000);
+        hi.setCheckPeriod(100);
+        hi.setCheckTimeout(50);
+        HostMonitor watcher = new HostMonitor("testCheckDeadline", Arrays.asList(hi), LoadBalancingPolicy.FIRST_LIVE,
+                1000, 0);
+        try {
+            Thread.sleep(550);
+            Assert.assertFalse(hi.isLive());
+            Assert.assertTrue(hi.failedChecks() >= 3, hi.failedChecks() + " failed checks");
+        } finally {
+            watcher.close();
+        }
+    }
+
+    /**
+     * A subscriber receives a snapshot of all hosts, then only the changes it requests.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testHealthPublisher() throws Exception {
+        HostMonitor watcher = createMonitor(LoadBalancingPolicy.FIRST_LIVE, checkPeriodMs);
+        BlockingQueue<HealthUpdate> updates = new LinkedBlockingQueue<>();
+        HealthPublisher.Subscription[] subscription = new HealthPublisher.Subscription[1];
+        try {
+            watcher.healthPublisher().subscribe(new HealthPublisher.Subscriber<HealthUpdate>() {
+                public void onSubscribe(HealthPublisher.Subscription s) {
+                    subscription[0] = s;
+                    s.request(1);
+                }
+
+                public void onNext(HealthUpdate update) {
+                    updates.add(update);
+                }
+
+                public void onError(Throwable throwable) {
+                }
+
+                public void onComplete() {
+                }
+            });
+            HealthUpdate update = updates.poll(1, TimeUnit.SECONDS);
+            Assert.assertTrue(update.isSnapshot());
+            Assert.assertEquals(update.liveHosts().size(), 3);
+
+            // The change is held until it is requested
+            mockServers[0].setMode(MockServer.Mode.DOWN);
+            Thread.sleep(checkPeriodMs * 4);
+            Assert.assertTrue(updates.isEmpty());
+            subscription[0].request(1);
+            update = updates.poll(1, TimeUnit.SECONDS);
+            Assert.assertFalse(update.isSnapshot());
+            Assert.assertEquals(update.changed(), Arrays.asList(watcher.hostInfos().get(0)));
+            Assert.assertFalse(update.isLive(watcher.hostInfos().get(0)));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Ten virtual minutes of flaky checks across a thousand hosts run without any real waiting, and the same
+     * seed produces the same history.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSimulation() throws Exception {
+        Assert.assertEquals(simulate(42), simulate(42));
+    }
+
+    private String simulate(long seed) throws Exception {
+        List<HostInfo> hinfos = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            hinfos.add(new HostInfo("10.0." + (i / 256) + "." + (i % 256), 80));
+        }
+        Simulation sim = new Simulation(seed);
+        sim.setBehavior(Simulation.flaky(0.2, 5));
+        sim.setBehavior(hinfos.get(0), Simulation.between(0, 5 * 60000, Simulation.hang(), Simulation.up(5)));
+        sim.setBehavior(hinfos.get(1), Simulation.down());
+        HostMonitor monitor = sim.createMonitor("testSimulation", hinfos, LoadBalancingPolicy.ROUND_ROBIN, 1000, 1);
+        StringBuilder transitions = new StringBuilder();
+        monitor.registerForHostEvents(event -> transitions.append(event.hostInfo.index).append(event.live ? '+' : '-'));
+        try {
+            sim.run(10 * 60000);
+            Assert.assertTrue(hinfos.get(0).isLive());
+            Assert.assertFalse(hinfos.get(1).isLive());
+            Assert.assertTrue(sim.eventCount() > 1000 * 600);
+        } finally {
+            monitor.close();
+        }
+        return transitions.toString();
+    }
+
+    /**
+     * The history of a host reports its availability, flaps, latency percentiles and checks over a window.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testHostHistory() throws Exception {
+        List<HostInfo> hinfos = new ArrayList<>();
+        hinfos.add(new HostInfo("10.0.0.1", 80));
+        hinfos.add(new HostInfo("10.0.0.2", 80));
+        Simulation sim = new Simulation(7);
+        sim.setBehavior(hinfos.get(0), Simulation.up(5));
+        sim.setBehavior(hinfos.get(1), Simulation.between(60000, 120000, Simulation.down(), Simulation.up(10)));
+        HostMonitor monitor = sim.createMonitor("testHostHistory", hinfos, LoadBalancingPolicy.ROUND_ROBIN, 1000, 0);
+        monitor.setHistorySize(1000);
+        try {
+            sim.run(180000);
+            HostHistory h0 = hinfos.get(0).history();
+            Assert.assertEquals(h0.availability(180000), 1.0, 0);
+            Assert.assertEquals(h0.flapCount(180000), 0);
+            Assert.assertEquals(h0.latencyPercentile(99, 180000), 5);
+
+            // One minute down in three, with a transition at each end
+            HostHistory h1 = hinfos.get(1).history();
+            Assert.assertEquals(1 - h1.availability(180000), 1 / 3.0, 0.02);
+            Assert.assertEquals(h1.flapCount(180000), 2);
+            Assert.assertEquals(h1.availability(30000), 1.0, 0);
+            Assert.assertEquals(h1.flapCount(30000), 0);
+            Assert.assertEquals(h1.latencyPercentile(50, 180000), 10);
+            Assert.assertEquals(h1.checks(30000), 30, 1);
+        } finally {
+            monitor.close();
+        }
+    }
+
+    /**
+     * The journal records every check and transition, and can be read back for a time range after rotation.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testJournal() throws Exception {
+        File dir = Files.createTempDirectory("viper").toFile();
+        File rotated = new File(dir, "rotated");
+        List<HostInfo> hinfos = new ArrayList<>();
+        hinfos.add(new HostInfo("10.0.0.1", 80));
+        hinfos.add(new HostInfo("10.0.0.2", 80));
+        Simulation sim = new Simulation(7);
+        sim.setBehavior(hinfos.get(1), Simulation.between(60000, 120000, Simulation.down(), Simulation.up(10)));
+        HostMonitor monitor = sim.createMonitor("testJournal", hinfos, LoadBalancingPolicy.ROUND_ROBIN, 1000, 0);
+        long start = sim.currentTimeMillis();
+        try {
+            monitor.setJournal(dir, 1 << 20, 2);
+            sim.run(180000);
+
+            // A new journal closes the previous one. Tiny segments are rotated and only the newest are kept.
+            monitor.setJournal(rotated, 1, 2);
+            sim.run(180000);
+        } finally {
+            monitor.close();
+        }
+
+        List<String> transitions = new ArrayList<>();
+        int[] counts = new int[3];
+        EventJournal.read(dir, 0, Long.MAX_VALUE, r -> {
+            counts[r.type]++;
+            if (r.type == EventJournal.TRANSITION) {
+                transitions.add(r.host + (r.live ? "+" : "-"));
+            }
+        });
+        Assert.assertEquals(transitions,
+                Arrays.asList("10.0.0.1:80+", "10.0.0.2:80+", "10.0.0.2:80-", "10.0.0.2:80+"));
+        Assert.assertEquals(counts[EventJournal.CHECK], 360, 4);
+
+        // Only the minute the host was down
+        int[] down = new int[3];
+        EventJournal.read(dir, start + 60000, start + 120000, r -> {
+            if (r.host.equals("10.0.0.2:80")) {
+                Assert.assertFalse(r.live);
+                Assert.assertTrue(r.type == EventJournal.TRANSITION || r.latency == -1);
+                down[r.type]++;
+            }
+        });
+        Assert.assertEquals(down[EventJournal.TRANSITION], 1);
+        Assert.assertEquals(down[EventJournal.CHECK], 60, 1);
+
+        File[] segments = rotated.listFiles();
+        Assert.assertNotNull(segments);
+        Assert.assertEquals(segments.length, 2);
+        for (File f : segments) {
+            f.delete();
+        }
+        rotated.delete();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Host specs are parsed into hosts, sharing one TLS configuration, and an unresolved host only fails its own
+     * checks.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testHostSpecs() throws Exception {
+        List<HostInfo> hinfos = HostSpecs.parse(
+                Arrays.asList("5000", "localhost:5001", "http://localhost:5002", "no-such-host.invalid:5003"),
+                null, 4, 2000);
+        Assert.assertEquals(hinfos.size(), 4);
+        Assert.assertEquals(hinfos.get(0).socketAddress(), new InetSocketAddress("localhost", 5000));
+        Assert.assertEquals(hinfos.get(2).url.getPort(), 5002);
+        Assert.assertTrue(hinfos.get(3).socketAddress().isUnresolved());
+        Assert.assertNull(hinfos.get(0).tls);
+
+        // The TLS hosts share the default TLS configuration
+        List<HostInfo> tlsHosts = HostSpecs.parse(Arrays.asList("tls:localhost:5000", "https://localhost:5002"),
+                null, 4, 2000);
+        Assert.assertNotNull(tlsHosts.get(0).tls);
+        Assert.assertSame(tlsHosts.get(1).tls, tlsHosts.get(0).tls);
+        try {
+            HostSpecs.parse(Arrays.asList("localhost"), null, 4, 2000);
+            Assert.fail("invalid host spec accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // The unresolved host keeps failing its checks without affecting the others
+        HostMonitor monitor = new HostMonitor("testHostSpecs", hinfos, LoadBalancingPolicy.ROUND_ROBIN,
+                checkPeriodMs, 0);
+        try {
+            Thread.sleep(checkPeriodMs * 4);
+            Assert.assertTrue(hinfos.get(0).isLive());
+            Assert.assertTrue(hinfos.get(1).isLive());
+            Assert.assertTrue(hinfos.get(2).isLive());
+            Assert.assertFalse(hinfos.get(3).isLive());
+            Assert.assertTrue(hinfos.get(3).failedChecks() > 0);
+        } finally {
+            monitor.close();
+        }
+    }
+
+    /**
+     * The least loaded policy favors the hosts reporting the lower load, and a host that goes down forgets its load.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLeastLoaded() throws Exception {
+        String[] loads = {"0.9", "0.1", "0.5"};
+        List<HostInfo> hinfos = new ArrayList<>();
+        for (int i = 0; i < mockServers.length; i++) {
+            mockServers[i].setLoad(loads[i]);
+            hinfos.add(new HostInfo("http://localhost:" + (5000 + i)));
+        }
+        HostMonitor monitor = new HostMonitor("testLeastLoaded", hinfos, LoadBalancingPolicy.LEAST_LOADED,
+                checkPeriodMs, 0);
+        try {
+            Thread.sleep(checkPeriodMs * 4);
+            Assert.assertEquals(hinfos.get(0).load(), 0.9, 0.001);
+            Assert.assertEquals(hinfos.get(1).load(), 0.1, 0.001);
+
+            // The better of two random hosts: 5/9 of the calls go to the least loaded host and 1/9 to the most
+            int[] counts = new int[hinfos.size()];
+            for (int i = 0; i < 9000; i++) {
+                counts[hinfos.indexOf(monitor.liveHost())]++;
+            }
+            Assert.assertEquals(counts[1], 5000, 300);
+            Assert.assertEquals(counts[2], 3000, 300);
+            Assert.assertEquals(counts[0], 1000, 300);
+
+            // A host that goes down forgets its load
+            mockServers[1].setMode(MockServer.Mode.DOWN);
+            Thread.sleep(checkPeriodMs * 4);
+            Assert.assertFalse(hinfos.get(1).isLive());
+            Assert.assertTrue(Double.isNaN(hinfos.get(1).load()));
+        } finally {
+            monitor.close();
+            for (MockServer s : mockServers) {
+                s.setLoad(null);
+            }
+        }
+
+        try {
+            monitor.setLoadHint("X-Load", 1.5);
+            Assert.fail("a smoothing above 1 is accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * A drained host leaves the rotation right away, is idle once its requests complete, and is undrained after a
+     * restart.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDrain() throws Exception {
+        HostMonitor watcher = createMonitor(LoadBalancingPolicy.FIRST_LIVE, checkPeriodMs);
+        try {
+            HostInfo hi = watcher.liveHost();
+            Assert.assertEquals(hi.socketAddress.getPort(), 5000);
+
+            // The host leaves the rotation immediately but is idle only when its request completes
+            hi.beginRequest();
+            CompletableFuture<Void> idle = watcher.drain(hi, true);
+            Assert.assertEquals(watcher.liveHost().socketAddress.getPort(), 5001);
+            Assert.assertFalse(idle.isDone());
+            hi.endRequest();
+            Assert.assertTrue(idle.isDone());
+
+            // The host is still checked; it is undrained once it has been restarted
+            Thread.sleep(checkPeriodMs * 4);
+            Assert.assertTrue(hi.isLive());
+            Assert.assertTrue(hi.isDrained());
+            mockServers[0].setMode(MockServer.Mode.DOWN);
+            Thread.sleep(checkPeriodMs * 4);
+            Assert.assertTrue(hi.isDrained());
+            mockServers[0].setMode(MockServer.Mode.UP);
+            Thread.sleep(checkPeriodMs * 10);
+            Assert.assertFalse(hi.isDrained());
+            Assert.assertEquals(watcher.liveHost().socketAddress.getPort(), 5000);
+
+            // Undraining a host that still has requests in flight cancels the drain
+            hi.beginRequest();
+            idle = watcher.drain(hi, false);
+            watcher.undrain(hi);
+            Assert.assertTrue(idle.isCancelled());
+            hi.endRequest();
+        } finally {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Every policy returns distinct live hosts, and all of them when more are asked for than are live.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLiveHosts() throws Exception {
+        for (LoadBalancingPolicy policy : LoadBalancingPolicy.values()) {
+            List<HostInfo> hinfos = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                hinfos.add(new HostInfo("10.1.0." + i, 80));
+            }
+            Simulation sim = new Simulation(7);
+            sim.setBehavior(Simulation.up(5));
+            sim.setBehavior(hinfos.get(3), Simulation.down());
+            HostMonitor monitor = sim.createMonitor("testLiveHosts", hinfos, policy, 1000, 1);
+            try {
+                sim.run(10000);
+                HostInfo[] hosts = new HostInfo[4];
+                for (int i = 0; i < 100; i++) {
+                    Assert.assertEquals(monitor.liveHosts(hosts), 4, policy.toString());
+                    Assert.assertEquals(new HashSet<>(Arrays.asList(hosts)).size(), 4, policy.toString());
+                    Assert.assertFalse(Arrays.asList(hosts).contains(hinfos.get(3)), policy.toString());
+                }
+
+                // Asking for more hosts than are live returns all of them
+                List<HostInfo> all = monitor.liveHosts(20);
+                Assert.assertEquals(new HashSet<>(all).size(), 9, policy.toString());
+
+                if (policy == LoadBalancingPolicy.FIRST_LIVE) {
+                    Assert.assertEquals(monitor.liveHosts(3), hinfos.subList(0, 3));
+                } else if (policy == LoadBalancingPolicy.ROUND_ROBIN) {
+                    List<HostInfo> next = new ArrayList<>(monitor.liveHosts(4));
+                    next.retainAll(monitor.liveHosts(4));
+                    Assert.assertTrue(next.isEmpty(), next.toString());
+                }
+            } finally {
+                monitor.close();
+            }
+        }
+    }
+
+    /**
+     * A client checks only its subset of the hosts, which expands while some of its hosts are down.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSubset() throws Exception {
+        List<HostInfo> hinfos = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            hinfos.add(new HostInfo("10.2.0." + i, 80));
+        }
+        Simulation sim = new Simulation(11);
+        sim.setBehavior(Simulation.up(5));
+        HostMonitor monitor = sim.createMonitor("testSubset", hinfos, LoadBalancingPolicy.ROUND_ROBIN, 1000, 0,
+                new HostMonitor.Options().setSubset("client-1", 10));
+        try {
+            sim.run(10000);
+            List<HostInfo> subset = new ArrayList<>(monitor.liveHosts(100));
+            Assert.assertEquals(subset.size(), 10);
+            for (HostInfo hi : hinfos) {
+                // Hosts outside the subset are never checked
+                Assert.assertEquals(hi.lastCheck() != 0, subset.contains(hi), hi.toString());
+            }
+
+            // The same client ID gets the same subset
+            List<HostInfo> copies = new ArrayList<>();
+            for (HostInfo hi : hinfos) {
+                copies.add(new HostInfo(hi.name, hi.port));
+            }
+            Simulation sim2 = new Simulation(12);
+            sim2.setBehavior(Simulation.up(5));
+            HostMonitor other = sim2.createMonitor("testSubset2", copies, LoadBalancingPolicy.ROUND_ROBIN, 1000, 0,
+                    new HostMonitor.Options().setSubset("client-1", 10));
+            try {
+                sim2.run(10000);
+                for (int i = 0; i < hinfos.size(); i++) {
+                    Assert.assertEquals(copies.get(i).isLive(), hinfos.get(i).isLive());
+                }
+            } finally {
+                other.close();
+            }
+
+            // The subset expands while some of its hosts are down and shrinks back when they recover
+            for (HostInfo hi : subset.subList(0, 3)) {
+                sim.setBehavior(hi, Simulation.down());
+            }
+            sim.run(10000);
+            Assert.assertEquals(monitor.liveHosts(100).size(), 10);
+            Assert.assertFalse(monitor.liveHosts(100).contains(subset.get(0)));
+            for (HostInfo hi : subset.subList(0, 3)) {
+                sim.setBehavior(hi, Simulation.up(5));
+            }
+            sim.run(10000);
+            Assert.assertEquals(new HashSet<>(monitor.liveHosts(100)), new HashSet<>(subset));
+        } finally {
+            monitor.close();
+        }
+    }
+
+    /**
+     * Rise and fall counts, consecutive or within a window, reduce the flaps of a flaky host.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testHysteresis() throws Exception {
+        int plain = flaps(0, 0, 0);
+        Assert.assertTrue(plain > 100, "flaps=" + plain);
+        int consecutive = flaps(3, 3, 0);
+        Assert.assertTrue(consecutive < plain / 4, "flaps=" + consecutive + " vs " + plain);
+        int windowed = flaps(8, 5, 10);
+        Assert.assertTrue(windowed < plain / 4, "flaps=" + windowed + " vs " + plain);
+    }
+
+    /*
+     * Returns the number of flaps of a host that fails 30% of its checks, over 1000 checks.
+     */
+    private int flaps(int rise, int fall, int window) throws Exception {
+        HostInfo hi = new HostInfo("10.3.0.1", 80);
+        Simulation sim = new Simulation(5);
+        sim.setBehavior(Simulation.flaky(0.3, 5));
+        HostMonitor monitor = sim.createMonitor("testHysteresis", Arrays.asList(hi), LoadBalancingPolicy.ROUND_ROBIN,
+                1000, 0);
+        try {
+            if (rise > 0) {
+                monitor.setHysteresis(rise, fall, window);
+            }
+            sim.run(1000 * 1000);
+            return hi.flapCount();
+        } finally {
+            monitor.close();
+        }
+    }
+
+    /**
+     * Hosts configured with a probe are checked with it rather than with a TCP connect.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testProbes() throws Exception {
+        // A UDP server that answers ping with pong
+        DatagramChannel udp = DatagramChannel.open();
+        udp.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        int udpPort = ((InetSocketAddress) udp.getLocalAddress()).getPort();
+
+        // A port that nothing listens on
+        int closedPort;
+        try (DatagramChannel unused = DatagramChannel.open()) {
+            unused.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            closedPort = ((InetSocketAddress) unused.getLocalAddress()).getPort();
+        }
+        Thread udpServer = new Thread(() -> {
+            ByteBuffer buf = ByteBuffer.allocate(512);
+            try {
+                while (true) {
+                    buf.clear();
+                    SocketAddress from = udp.receive(buf);
+                    buf.flip();
+                    if (StandardCharsets.UTF_8.decode(buf).toString().equals("ping")) {
+                        udp.send(ByteBuffer.wrap("pong".getBytes(StandardCharsets.UTF_8)), from);
+                    }
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        });
+        udpServer.start();
+
+        mockServers[1].setMode(MockServer.Mode.ERROR);
+        mockServers[2].setMode(MockServer.Mode.HANG);
+        LineProbe http = new LineProbe("HEAD / HTTP/1.0", "HTTP/1.1 200");
+        UdpProbe ping = new UdpProbe("ping".getBytes(StandardCharsets.UTF_8), "pong".getBytes(StandardCharsets.UTF_8));
+        List<HostInfo> hinfos = new ArrayList<>();
+        int[] ports = {5000, 5001, 5002, udpPort, closedPort};
+        for (int i = 0; i < ports.length; i++) {
+            HostInfo hi = new HostInfo("localhost", ports[i]);
+            hi.setProbe(i < 3 ? http : ping);
+            hinfos.add(hi);
+        }
+        HostMonitor watcher = new HostMonitor("testProbes", hinfos, LoadBalancingPolicy.ROUND_ROBIN, checkPeriodMs, 0);
+        try {
+            Thread.sleep(checkPeriodMs * 6);
+            Assert.assertTrue(hinfos.get(0).isLive());
+            Assert.assertFalse(hinfos.get(1).isLive(), "an error status fails the line probe");
+            Assert.assertFalse(hinfos.get(2).isLive(), "a hung line probe is aborted");
+            Assert.assertTrue(hinfos.get(3).isLive());
+            Assert.assertFalse(hinfos.get(4).isLive(), "no UDP server on this port");
+        } finally {
+            watcher.close();
+            udp.close();
+            udpServer.join();
+        }
+
+        // A line probe that accepts any response still needs one
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread closer = new Thread(() -> {
+                try {
+                    server.accept().close();
+                } catch (IOException e) {
+                    // Closed
+                }
+            });
+            closer.start();
+            HostInfo hi = new HostInfo("localhost", server.socket().getLocalPort());
+            try {
+                new LineProbe("hello", "").check(hi, hi.resolve(), 1000, c -> { });
+                Assert.fail("a connection closed without a response passed the probe");
+            } catch (IOException e) {
+                // Expected
+            }
+            closer.join();
+        }
+
+        try {
+            new HostInfo("http://localhost:5002").setProbe(http);
+            Assert.fail("a probe was set on a URL host");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Cycles the mock servers through every failure mode under load and checks that the number of threads,
+     * the number of open file descriptors and the heap stay stable. This test is excluded from the default
+     * test run. "gradlew soakTest" runs it for viper.soak.minutes minutes.
+     *
+     * @throws Exception
+     */
+    @Test(groups = "soak")
+    public void testSoak() throws Exception {
+        long durationMs = (long) (Double.parseDouble(System.getProperty("viper.soak.minutes", "1")) * 60000);
+        MockServer.Mode[] modes = {MockServer.Mode.UP, MockServer.Mode.HANG, MockServer.Mode.UP,
+                MockServer.Mode.ERROR, MockServer.Mode.UP, MockServer.Mode.DOWN};
+        int phaseMs = 2000;
+
+        HostMonitor watcher = createMonitor(LoadBalancingPolicy.ROUND_ROBIN, checkPeriodMs);
+        AtomicBoolean run = new AtomicBoolean(true);
+        List<Thread> load = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Thread t = new Thread(() -> {
+                while (run.get()) {
+                    try {
+                        watcher.liveHost();
+                        watcher.execute(hi -> hi.name);
+                    } catch (ExecutionException e) {
+                        // No live hosts
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            load.add(t);
+        }
+        try {
+            long start = System.currentTimeMillis();
+            long[] baseline = null;
+            for (int phase = 0; System.currentTimeMillis() - start < durationMs; phase++) {
+                for (int i = 0; i < mockServers.length; i++) {
+                    mockServers[i].setMode(modes[(phase + i) % modes.length]);
+                }
+                Thread.sleep(phaseMs);
+
+                // Measure once per cycle, after the first one has warmed up the pools
+                if (phase % modes.length == modes.length - 1) {
+                    long[] usage = resourceUsage();
+                    if (baseline == null) {
+                        baseline = usage;
+                    } else {
+                        String msg = String.format("after %d s: threads, fds, heap %s; baseline %s",
+                                (System.currentTimeMillis() - start) / 1000, Arrays.toString(usage),
+                                Arrays.toString(baseline));
+                        Assert.assertTrue(usage[0] <= baseline[0] + 8, msg);
+                        Assert.assertTrue(usage[1] <= baseline[1] + 16, msg);
+                        Assert.assertTrue(usage[2] <= baseline[2] + 32 * 1024 * 1024, msg);
+                    }
+                }
+            }
+        } finally {
+            run.set(false);
+            for (Thread t : load) {
+                t.join();
+            }
+            watcher.close();
+        }
+    }
+
+    /*
+     * Returns the number of live threads, the number of open file descriptors (-1 if unknown) and the heap
+     * used after a garbage collection.
+     */
+    private static long[] resourceUsage() throws InterruptedException {
+        String[] fds = new File("/proc/self/fd").list();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return new long[]{ManagementFactory.getThreadMXBean().getThreadCount(), fds == null ? -1 : fds.length,
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()};
+    }
 }